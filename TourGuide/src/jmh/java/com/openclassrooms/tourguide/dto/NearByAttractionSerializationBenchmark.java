@@ -0,0 +1,63 @@
+package com.openclassrooms.tourguide.dto;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import gpsUtil.location.Location;
+
+/**
+ * benchmark de la réponse /getNearbyAttractions : avant (un ObjectMapper créé à chaque appel, String ré-encodée par Spring)
+ * et après (ObjectWriter partagé, vers une String ou directement dans le flux).
+ * Le taux d'allocation s'obtient avec le profiler gc : -Djmh.options="-prof gc"
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class NearByAttractionSerializationBenchmark {
+	private final OutputStream out = OutputStream.nullOutputStream();
+	private NearByAttractionDTO nearByAttractionDTO;
+	private JsonWriters jsonWriters;
+
+	@Setup
+	public void setUp() {
+		Location userLocation = new Location(33.817595, -117.922008);
+		List<AttractionInformationDTO> attractionInformation = new ArrayList<>();
+		for (int i = 0; i < 5; i++) {
+			attractionInformation.add(new AttractionInformationDTO("attraction" + i, new Location(33.8 + i, -117.9 - i), 100 * i, userLocation));
+		}
+		nearByAttractionDTO = new NearByAttractionDTO();
+		nearByAttractionDTO.setUserLocation(userLocation);
+		nearByAttractionDTO.setAttractionInformation(attractionInformation);
+		jsonWriters = new JsonWriters(new ObjectMapper());
+	}
+
+	@Benchmark
+	public byte[] newObjectMapperPerCall() throws IOException {
+		String json = new ObjectMapper().writeValueAsString(nearByAttractionDTO);
+		return json.getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Benchmark
+	public byte[] sharedWriterToString() {
+		return jsonWriters.toJson(nearByAttractionDTO).getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Benchmark
+	public void sharedWriterToStream() throws IOException {
+		jsonWriters.writeTo(nearByAttractionDTO, out);
+	}
+}
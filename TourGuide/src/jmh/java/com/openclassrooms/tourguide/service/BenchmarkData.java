@@ -0,0 +1,100 @@
+package com.openclassrooms.tourguide.service;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import com.openclassrooms.tourguide.attraction.AttractionCatalog;
+import com.openclassrooms.tourguide.concurrent.ExecutionMode;
+import com.openclassrooms.tourguide.concurrent.TourGuideExecutors;
+import com.openclassrooms.tourguide.user.User;
+
+import gpsUtil.GpsUtil;
+import gpsUtil.location.Attraction;
+import gpsUtil.location.Location;
+import gpsUtil.location.VisitedLocation;
+import rewardCentral.RewardCentral;
+
+/**
+ * données des benchmarks : catalogue d'attractions et historique de positions générés avec une graine fixe
+ * (les résultats restent comparables d'une exécution à l'autre), gpsUtil et RewardCentral sans attente
+ */
+final class BenchmarkData {
+	static final long SEED = 42;
+
+	private BenchmarkData() {
+	}
+
+	/**
+	 * retourne size attractions réparties au hasard sur le globe
+	 * @param size
+	 * @param random
+	 * @return
+	 */
+	static List<Attraction> attractions(int size, Random random) {
+		List<Attraction> attractions = new ArrayList<>(size);
+		for (int i = 0; i < size; i++) {
+			attractions.add(new Attraction("attraction" + i, "city" + i, "state", randomLatitude(random), randomLongitude(random)));
+		}
+		return attractions;
+	}
+
+	/**
+	 * retourne un utilisateur avec historySize endroits visités : un sur dix est sur une attraction (récompense),
+	 * les autres sont au hasard
+	 * @param historySize
+	 * @param attractions
+	 * @param random
+	 * @return
+	 */
+	static User user(int historySize, List<Attraction> attractions, Random random) {
+		User user = new User(UUID.randomUUID(), "benchmarkUser", "000", "benchmarkUser@tourGuide.com");
+		for (int i = 0; i < historySize; i++) {
+			Location location = i % 10 == 0
+					? attractions.get(random.nextInt(attractions.size()))
+					: new Location(randomLatitude(random), randomLongitude(random));
+			user.addToVisitedLocations(new VisitedLocation(user.getUserId(), new Location(location.latitude, location.longitude), new Date()));
+		}
+		return user;
+	}
+
+	/**
+	 * retourne un RewardsService sur le catalogue donné, avec un RewardCentral qui répond tout de suite
+	 * @param attractions
+	 * @return
+	 */
+	static RewardsService rewardsService(List<Attraction> attractions) {
+		RewardCentral rewardCentral = new RewardCentral() {
+			@Override
+			public int getAttractionRewardPoints(UUID attractionId, UUID userId) {
+				return 100;
+			}
+		};
+		return new RewardsService(new RewardPointsCache(rewardCentral), new AttractionCatalog(gpsUtil(attractions)),
+				new TourGuideExecutors(ExecutionMode.FIXED_POOL));
+	}
+
+	/**
+	 * retourne un gpsUtil dont le catalogue est la liste donnée
+	 * @param attractions
+	 * @return
+	 */
+	static GpsUtil gpsUtil(List<Attraction> attractions) {
+		return new GpsUtil() {
+			@Override
+			public List<Attraction> getAttractions() {
+				return attractions;
+			}
+		};
+	}
+
+	private static double randomLatitude(Random random) {
+		return -85.05112878 + random.nextDouble() * 2 * 85.05112878;
+	}
+
+	private static double randomLongitude(Random random) {
+		return -180 + random.nextDouble() * 360;
+	}
+}
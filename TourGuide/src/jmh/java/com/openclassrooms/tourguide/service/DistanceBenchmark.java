@@ -0,0 +1,86 @@
+package com.openclassrooms.tourguide.service;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.openclassrooms.tourguide.helper.InternalTestHelper;
+
+import gpsUtil.location.Attraction;
+import gpsUtil.location.Location;
+import gpsUtil.location.VisitedLocation;
+
+/**
+ * benchmarks des calculs de distance pour une position face à tout le catalogue :
+ * calcul de référence (getDistance, nearAttraction) et recherches par l'index (findWithinRange, getNearByAttractions)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class DistanceBenchmark {
+	@Param({ "26", "1000", "10000" })
+	public int catalogSize;
+
+	private List<Attraction> attractions;
+	private RewardsService rewardsService;
+	private TourGuideService tourGuideService;
+	private VisitedLocation visitedLocation;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		Random random = new Random(BenchmarkData.SEED);
+		attractions = BenchmarkData.attractions(catalogSize, random);
+		rewardsService = BenchmarkData.rewardsService(attractions);
+		InternalTestHelper.setInternalUserNumber(0);
+		tourGuideService = new TourGuideService(BenchmarkData.gpsUtil(attractions), rewardsService);
+		tourGuideService.tracker.stopTracking();
+		visitedLocation = BenchmarkData.user(1, attractions, random).getLastVisitedLocation();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		tourGuideService.shutdown();
+		rewardsService.getExecutors().shutdown();
+	}
+
+	@Benchmark
+	public void getDistance(Blackhole blackhole) {
+		Location location = visitedLocation.location;
+		for (Attraction attraction : attractions) {
+			blackhole.consume(RewardsService.getDistance(attraction, location));
+		}
+	}
+
+	@Benchmark
+	public int nearAttraction() {
+		int nbNear = 0;
+		for (Attraction attraction : attractions) {
+			if (rewardsService.nearAttraction(visitedLocation, attraction)) {
+				nbNear++;
+			}
+		}
+		return nbNear;
+	}
+
+	@Benchmark
+	public List<Attraction> findWithinRange() {
+		return rewardsService.getAttractionCatalog().getSnapshot().getIndex().findWithinRange(visitedLocation.location, 10);
+	}
+
+	@Benchmark
+	public List<Attraction> getNearByAttractions() {
+		return tourGuideService.getNearByAttractions(visitedLocation);
+	}
+}
@@ -0,0 +1,67 @@
+package com.openclassrooms.tourguide.service;
+
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.openclassrooms.tourguide.user.User;
+
+import gpsUtil.location.Attraction;
+import gpsUtil.location.VisitedLocation;
+
+/**
+ * benchmark du calcul des récompenses d'un utilisateur (calculateRewardsCore) sur tout son historique,
+ * selon la taille du catalogue et de l'historique. Les points viennent du cache (RewardCentral ne coûte rien ici).
+ * Chaque appel part d'un utilisateur sans récompense (les récompenses sont gardées d'un calcul à l'autre)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class RewardsCalculationBenchmark {
+	@Param({ "26", "1000", "10000" })
+	public int catalogSize;
+
+	@Param({ "10", "100", "1000" })
+	public int historySize;
+
+	private RewardsService rewardsService;
+	private List<VisitedLocation> history;
+	private User user;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		Random random = new Random(BenchmarkData.SEED);
+		List<Attraction> attractions = BenchmarkData.attractions(catalogSize, random);
+		rewardsService = BenchmarkData.rewardsService(attractions);
+		history = BenchmarkData.user(historySize, attractions, random).getVisitedLocations();
+	}
+
+	@Setup(Level.Invocation)
+	public void newUser() {
+		user = new User(UUID.randomUUID(), "benchmarkUser", "000", "benchmarkUser@tourGuide.com");
+		history.forEach(user::addToVisitedLocations);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		rewardsService.getExecutors().shutdown();
+	}
+
+	@Benchmark
+	public int calculateRewardsCore() {
+		rewardsService.calculateRewardsCore(user, true);
+		return user.getUserRewards().size();
+	}
+}
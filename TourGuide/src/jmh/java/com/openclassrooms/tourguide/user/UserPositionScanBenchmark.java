@@ -0,0 +1,74 @@
+package com.openclassrooms.tourguide.user;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.openclassrooms.tourguide.service.RewardsService;
+
+import gpsUtil.location.Location;
+import gpsUtil.location.VisitedLocation;
+
+/**
+ * benchmarks du comptage des utilisateurs proches d'une position :
+ * parcours des objets User (dernière position + distance) face au parcours des colonnes du UserPositionStore
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class UserPositionScanBenchmark {
+	private static final double RANGE_MILES = 500;
+
+	@Param({ "10000", "100000" })
+	public int nbUsers;
+
+	private List<User> users;
+	private UserPositionStore store;
+	private Location center;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		Random random = new Random(42);
+		users = new ArrayList<>(nbUsers);
+		store = new UserPositionStore();
+		for (int i = 0; i < nbUsers; i++) {
+			UUID userId = new UUID(random.nextLong(), random.nextLong());
+			User user = new User(userId, "user" + i, "000", "user" + i + "@tourGuide.com");
+			VisitedLocation visitedLocation = new VisitedLocation(userId,
+					new Location(random.nextDouble() * 170 - 85, random.nextDouble() * 360 - 180), new Date());
+			user.addToVisitedLocations(visitedLocation);
+			users.add(user);
+			store.update(userId, visitedLocation);
+		}
+		center = new Location(33.817595, -117.922008);
+	}
+
+	@Benchmark
+	public int countByUserObjects() {
+		int count = 0;
+		for (User user : users) {
+			if (RewardsService.getDistance(center, user.getLastVisitedLocation().location) <= RANGE_MILES) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	@Benchmark
+	public int countByColumns() {
+		return store.countWithin(center, RANGE_MILES);
+	}
+}
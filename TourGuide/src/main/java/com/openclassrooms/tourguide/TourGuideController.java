@@ -1,12 +1,28 @@
 package com.openclassrooms.tourguide;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseStatus;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import com.openclassrooms.tourguide.dto.JsonWriters;
 import com.openclassrooms.tourguide.service.TourGuideService;
 import com.openclassrooms.tourguide.user.User;
 import com.openclassrooms.tourguide.user.UserReward;
@@ -20,26 +36,98 @@ public class TourGuideController {
 	@Autowired
 	TourGuideService tourGuideService;
 	
+	@Autowired
+	ObjectMapper objectMapper;
+	
+	@Autowired
+	JsonWriters jsonWriters;
+	
+	// type des réponses "un objet Json par ligne"
+	static final MediaType APPLICATION_NDJSON = MediaType.parseMediaType("application/x-ndjson");
+	
+	// délai maximum des réponses asynchrones (position, attractions proches, récompenses)
+	@Value("${tourguide.web.async-timeout-millis:30000}")
+	long asyncTimeoutMillis;
+	
     @RequestMapping("/")
     public String index() {
         return "Greetings from TourGuide!";
     }
     
+    // les endpoints ci-dessous retournent un CompletableFuture : le thread de Tomcat est libéré tout de suite
+    // et la réponse est écrite quand le calcul (position, récompenses) est terminé
     @RequestMapping("/getLocation") 
-    public VisitedLocation getLocation(@RequestParam String userName) {
-    	return tourGuideService.getUserLocation(getUser(userName));
+    public CompletableFuture<VisitedLocation> getLocation(@RequestParam String userName) {
+    	return withTimeout(tourGuideService.getUserLocationFuture(getUser(userName)));
     }
     
     @RequestMapping("/getNearbyAttractions") 
-    public String getNearbyAttractions(@RequestParam String userName) {
-    	return tourGuideService.getNearByAttractionsAsJson(userName);
+    public CompletableFuture<ResponseEntity<StreamingResponseBody>> getNearbyAttractions(@RequestParam String userName,
+    		@RequestParam(defaultValue = "" + TourGuideService.NB_NEARBY_ATTRACTIONS) int nbAttractions) {
+    	// le DTO est écrit directement dans la réponse avec l'ObjectWriter partagé, sans passer par une String
+    	return withTimeout(tourGuideService.getNearByAttractionsFuture(userName, nbAttractions)
+    			.thenApply(nearByAttractionDTO -> ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON)
+    					.body(out -> jsonWriters.writeTo(nearByAttractionDTO, out))));
     }
     
     @RequestMapping("/getRewards") 
-    public List<UserReward> getRewards(@RequestParam String userName) {
-    	return tourGuideService.getUserRewards(getUser(userName));
+    public CompletableFuture<List<UserReward>> getRewards(@RequestParam String userName) {
+    	return withTimeout(tourGuideService.getUserRewardsFuture(getUser(userName)));
     }
        
+    /**
+     * retourne la dernière position connue de tous les utilisateurs, sous forme d'un objet Json dont les clés sont les userId.
+     * La réponse est écrite au fil de l'eau (JsonGenerator) directement depuis le dernier VisitedLocation de chaque utilisateur,
+     * sans construire la liste en mémoire. Les utilisateurs sans position sont ignorés
+     * @return
+     */
+    @RequestMapping("/getAllCurrentLocations")
+    public ResponseEntity<StreamingResponseBody> getAllCurrentLocations() {
+    	StreamingResponseBody body = out -> {
+    		try (JsonGenerator generator = createGenerator(out)) {
+    			generator.writeStartObject();
+    			for (User user : tourGuideService.getUserRegistry()) {
+    				VisitedLocation visitedLocation = user.getLastVisitedLocation();
+    				if (visitedLocation != null) {
+    					generator.writeObjectFieldStart(user.getUserId().toString());
+    					generator.writeNumberField("longitude", visitedLocation.location.longitude);
+    					generator.writeNumberField("latitude", visitedLocation.location.latitude);
+    					generator.writeEndObject();
+    				}
+    			}
+    			generator.writeEndObject();
+    		}
+    	};
+    	return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(body);
+    }
+    
+    /**
+     * retourne les récompenses déjà calculées des utilisateurs demandés, une ligne Json par utilisateur (NDJSON),
+     * écrite au fil de l'eau. Les noms d'utilisateurs inconnus sont ignorés
+     * @param userNames
+     * @return
+     */
+    @RequestMapping("/getRewardsForUsers")
+    public ResponseEntity<StreamingResponseBody> getRewardsForUsers(@RequestParam List<String> userNames) {
+    	StreamingResponseBody body = out -> {
+    		try (JsonGenerator generator = createGenerator(out)) {
+    			generator.setRootValueSeparator(null);
+    			for (String userName : userNames) {
+    				User user = getUser(userName);
+    				if (user != null) {
+    					generator.writeStartObject();
+    					generator.writeStringField("userName", user.getUserName());
+    					generator.writeStringField("userId", user.getUserId().toString());
+    					generator.writeObjectField("rewards", user.getUserRewardsWithoutWaiting());
+    					generator.writeEndObject();
+    					generator.writeRaw('\n');
+    				}
+    			}
+    		}
+    	};
+    	return ResponseEntity.ok().contentType(APPLICATION_NDJSON).body(body);
+    }
+    
     @RequestMapping("/getTripDeals")
     public List<Provider> getTripDeals(@RequestParam String userName) {
     	return tourGuideService.getTripDeals(getUser(userName));
@@ -48,6 +136,26 @@ public class TourGuideController {
     private User getUser(String userName) {
     	return tourGuideService.getUser(userName);
     }
+    
+    // le flux de la réponse est fermé par Spring, pas par le générateur
+    private JsonGenerator createGenerator(OutputStream out) throws IOException {
+    	return objectMapper.getFactory().createGenerator(out).disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    }
+    
+    private <T> CompletableFuture<T> withTimeout(CompletableFuture<T> futur) {
+    	return futur.orTimeout(asyncTimeoutMillis, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * le calcul n'a pas fini dans le délai : on répond 503 plutôt que de garder la requête ouverte
+     * @param e
+     * @return
+     */
+    @ExceptionHandler(TimeoutException.class)
+    @ResponseStatus(HttpStatus.SERVICE_UNAVAILABLE)
+    public String handleTimeout(TimeoutException e) {
+    	return "Request timed out";
+    }
    
 
 }
\ No newline at end of file
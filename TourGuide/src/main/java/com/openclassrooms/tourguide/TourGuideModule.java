@@ -1,23 +1,80 @@
 package com.openclassrooms.tourguide;
 
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+
 import gpsUtil.GpsUtil;
 import rewardCentral.RewardCentral;
+import com.openclassrooms.tourguide.attraction.AttractionCatalog;
+import com.openclassrooms.tourguide.concurrent.ExecutionMode;
+import com.openclassrooms.tourguide.concurrent.ExternalCallLimiter;
+import com.openclassrooms.tourguide.concurrent.RejectionPolicy;
+import com.openclassrooms.tourguide.concurrent.TourGuideExecutors;
+import com.openclassrooms.tourguide.dto.JsonWriters;
+import com.openclassrooms.tourguide.service.RewardPointsCache;
 import com.openclassrooms.tourguide.service.RewardsService;
 
 @Configuration
 public class TourGuideModule {
 	
+	// délai entre deux rechargements du catalogue des attractions (0 pour ne jamais recharger)
+	@Value("${tourguide.attractions.refresh-minutes:60}")
+	private long attractionsRefreshMinutes;
+	// durée de vie et taille maximum du cache des points de récompense
+	@Value("${tourguide.reward-points.cache.ttl-minutes:" + RewardPointsCache.DEFAULT_TTL_MINUTES + "}")
+	private long rewardPointsTtlMinutes;
+	@Value("${tourguide.reward-points.cache.max-size:" + RewardPointsCache.DEFAULT_MAX_SIZE + "}")
+	private int rewardPointsMaxSize;
+	// FIXED_POOL ou VIRTUAL_THREADS
+	@Value("${tourguide.execution.mode:FIXED_POOL}")
+	private ExecutionMode executionMode;
+	// bornes des bulkheads "tracking" et "rewards" (0 : taille du pool fixe) et politique quand la file est pleine
+	@Value("${tourguide.execution.tracking.max-concurrency:0}")
+	private int trackingMaxConcurrency;
+	@Value("${tourguide.execution.rewards.max-concurrency:0}")
+	private int rewardsMaxConcurrency;
+	@Value("${tourguide.execution.queue-capacity:" + TourGuideExecutors.DEFAULT_QUEUE_CAPACITY + "}")
+	private int queueCapacity;
+	@Value("${tourguide.execution.rejection-policy:BLOCK}")
+	private RejectionPolicy rejectionPolicy;
+	@Value("${tourguide.execution.shutdown-timeout-seconds:" + TourGuideExecutors.DEFAULT_SHUTDOWN_TIMEOUT_SECONDS + "}")
+	private long shutdownTimeoutSeconds;
+	// nombre maximum d'appels simultanés vers gpsUtil et vers RewardCentral (0 : taille du pool fixe)
+	@Value("${tourguide.execution.max-concurrent-external-calls:0}")
+	private int maxConcurrentExternalCalls;
+	
 	@Bean
 	public GpsUtil getGpsUtil() {
 		return new GpsUtil();
 	}
 	
+	@Bean(destroyMethod = "stopRefreshing")
+	public AttractionCatalog getAttractionCatalog() {
+		AttractionCatalog attractionCatalog = new AttractionCatalog(getGpsUtil());
+		attractionCatalog.startRefreshing(attractionsRefreshMinutes, TimeUnit.MINUTES);
+		return attractionCatalog;
+	}
+	
 	@Bean
 	public RewardsService getRewardsService() {
-		return new RewardsService(getGpsUtil(), getRewardCentral());
+		return new RewardsService(getRewardPointsCache(), getAttractionCatalog(), getTourGuideExecutors());
+	}
+	
+	@Bean(destroyMethod = "shutdown")
+	public TourGuideExecutors getTourGuideExecutors() {
+		return new TourGuideExecutors(executionMode, orPoolSize(trackingMaxConcurrency), orPoolSize(rewardsMaxConcurrency),
+				queueCapacity, rejectionPolicy, shutdownTimeoutSeconds, orPoolSize(maxConcurrentExternalCalls));
+	}
+	
+	@Bean
+	public RewardPointsCache getRewardPointsCache() {
+		return new RewardPointsCache(getRewardCentral(), TimeUnit.MINUTES.toMillis(rewardPointsTtlMinutes), rewardPointsMaxSize,
+				new ExternalCallLimiter("rewardCentral", orPoolSize(maxConcurrentExternalCalls)));
 	}
 	
 	@Bean
@@ -25,4 +82,14 @@ public class TourGuideModule {
 		return new RewardCentral();
 	}
 	
+	// ObjectWriter partagés, construits à partir de l'ObjectMapper de Spring
+	@Bean
+	public JsonWriters getJsonWriters(ObjectMapper objectMapper) {
+		return new JsonWriters(objectMapper);
+	}
+	
+	private static int orPoolSize(int value) {
+		return value > 0 ? value : ExecutionMode.FIXED_POOL_SIZE;
+	}
+	
 }
@@ -0,0 +1,120 @@
+package com.openclassrooms.tourguide.attraction;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import gpsUtil.GpsUtil;
+import gpsUtil.location.Attraction;
+
+/**
+ * catalogue des attractions : la liste est chargée une seule fois depuis gpsUtil puis gardée en mémoire
+ * dans une AttractionSnapshot. Le rafraichissement (optionnel) se fait en tâche de fond et remplace la photographie
+ * d'un seul coup, les lecteurs n'ont donc jamais besoin de verrou : ils lisent la photographie courante et la gardent
+ * le temps de leur calcul
+ */
+public class AttractionCatalog {
+	private static Logger logger = LoggerFactory.getLogger(AttractionCatalog.class);
+	private final GpsUtil gpsUtil;
+	private final AtomicReference<AttractionSnapshot> snapshot = new AtomicReference<>();
+	private ScheduledExecutorService refreshExecutor;
+
+	public AttractionCatalog(GpsUtil gpsUtil) {
+		this.gpsUtil = gpsUtil;
+		refresh();
+	}
+
+	/**
+	 * retourne la photographie courante du catalogue (lecture sans verrou)
+	 * @return
+	 */
+	public AttractionSnapshot getSnapshot() {
+		return snapshot.get();
+	}
+
+	/**
+	 * recharge les attractions depuis gpsUtil. Une nouvelle version n'est publiée que si la liste a changé.
+	 * Les attractions déjà connues (même nom) sont réutilisées pour garder le même attractionId d'une version à l'autre
+	 * @return la photographie courante après rafraichissement
+	 */
+	public synchronized AttractionSnapshot refresh() {
+		List<Attraction> loaded = gpsUtil.getAttractions();
+		AttractionSnapshot current = snapshot.get();
+		if (current != null && sameAttractions(current, loaded)) {
+			return current;
+		}
+		Map<String, Attraction> knownByName = new HashMap<>();
+		if (current != null) {
+			current.getAttractions().forEach(a -> knownByName.put(a.attractionName, a));
+		}
+		List<Attraction> attractions = new ArrayList<>(loaded.size());
+		for (Attraction attraction : loaded) {
+			Attraction known = knownByName.get(attraction.attractionName);
+			attractions.add(known != null && sameAttraction(known, attraction) ? known : attraction);
+		}
+		AttractionSnapshot newSnapshot = new AttractionSnapshot(current == null ? 1 : current.getVersion() + 1, attractions);
+		snapshot.set(newSnapshot);
+		logger.debug("Attraction catalog version " + newSnapshot.getVersion() + " loaded with " + newSnapshot.size() + " attractions");
+		return newSnapshot;
+	}
+
+	/**
+	 * lance le rafraichissement du catalogue en tâche de fond, toutes les "period" unités de temps
+	 * @param period
+	 * @param unit
+	 */
+	public synchronized void startRefreshing(long period, TimeUnit unit) {
+		if (refreshExecutor != null || period <= 0) {
+			return;
+		}
+		refreshExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "attraction-catalog-refresh");
+			thread.setDaemon(true);
+			return thread;
+		});
+		refreshExecutor.scheduleWithFixedDelay(() -> {
+			try {
+				refresh();
+			} catch (RuntimeException e) {
+				// on garde la photographie précédente si gpsUtil ne répond pas
+				logger.warn("Attraction catalog refresh failed", e);
+			}
+		}, period, period, unit);
+	}
+
+	/**
+	 * arrête le rafraichissement en tâche de fond
+	 */
+	public synchronized void stopRefreshing() {
+		if (refreshExecutor != null) {
+			refreshExecutor.shutdownNow();
+			refreshExecutor = null;
+		}
+	}
+
+	private static boolean sameAttractions(AttractionSnapshot snapshot, List<Attraction> attractions) {
+		if (snapshot.size() != attractions.size()) {
+			return false;
+		}
+		for (int i = 0; i < attractions.size(); i++) {
+			if (!sameAttraction(snapshot.get(i), attractions.get(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean sameAttraction(Attraction a1, Attraction a2) {
+		return a1.attractionName.equals(a2.attractionName) && Objects.equals(a1.city, a2.city)
+				&& Objects.equals(a1.state, a2.state) && a1.latitude == a2.latitude && a1.longitude == a2.longitude;
+	}
+}
@@ -0,0 +1,272 @@
+package com.openclassrooms.tourguide.attraction;
+
+import java.util.List;
+
+import gpsUtil.location.Attraction;
+import gpsUtil.location.Location;
+
+/**
+ * calcul de distance entre une position et les attractions, avec la trigonométrie des attractions pré-calculée.
+ * Les coordonnées des attractions ne changent pas : leurs sinus et cosinus de latitude sont calculés une seule fois
+ * et rangés dans des tableaux de double. Chaque attraction est aussi vue comme un point (x, y, z) sur la sphère unité :
+ * la distance se compare alors avec la corde au carré (dx² + dy² + dz²), sans acos et précise même à courte distance.
+ * La corde ne sert qu'à trancher les cas nets : près du bord du rayon, c'est le calcul de référence
+ * (referenceDistance, celui de RewardsService.getDistance) qui décide, le résultat est donc exactement le même
+ */
+public class AttractionDistanceKernel {
+	private static final double STATUTE_MILES_PER_NAUTICAL_MILE = 1.15077945;
+	// nombre de miles pour un degré d'arc, même conversion que RewardsService.getDistance (60 milles nautiques par degré)
+	public static final double STATUTE_MILES_PER_DEGREE = 60 * STATUTE_MILES_PER_NAUTICAL_MILE;
+	// largeur (en miles) de la bande autour du rayon où la corde ne décide pas seule.
+	// L'écart entre la corde et le calcul de référence (acos) reste très en dessous (environ 1e-4 mile au pire)
+	static final double BOUNDARY_BAND_MILES = 1e-3;
+
+	private final double[] latitudes;
+	private final double[] longitudes;
+	private final double[] sinLatitudes;
+	private final double[] cosLatitudes;
+	// coordonnées sur la sphère unité (z = sinLatitudes)
+	private final double[] xs;
+	private final double[] ys;
+
+	public AttractionDistanceKernel(List<Attraction> attractions) {
+		int size = attractions.size();
+		latitudes = new double[size];
+		longitudes = new double[size];
+		sinLatitudes = new double[size];
+		cosLatitudes = new double[size];
+		xs = new double[size];
+		ys = new double[size];
+		for (int i = 0; i < size; i++) {
+			Attraction attraction = attractions.get(i);
+			double latitudeRadian = Math.toRadians(attraction.latitude);
+			double longitudeRadian = Math.toRadians(attraction.longitude);
+			latitudes[i] = attraction.latitude;
+			longitudes[i] = attraction.longitude;
+			sinLatitudes[i] = Math.sin(latitudeRadian);
+			cosLatitudes[i] = Math.cos(latitudeRadian);
+			xs[i] = cosLatitudes[i] * Math.cos(longitudeRadian);
+			ys[i] = cosLatitudes[i] * Math.sin(longitudeRadian);
+		}
+	}
+
+	public int size() {
+		return latitudes.length;
+	}
+
+	/**
+	 * prépare une position pour la comparer aux attractions (sa trigonométrie n'est calculée qu'une fois)
+	 * @param location
+	 * @return
+	 */
+	public static Point toPoint(Location location) {
+		return new Point(location);
+	}
+
+	/**
+	 * prépare un rayon en miles pour les tests "à moins de rangeMiles"
+	 * @param rangeMiles
+	 * @return
+	 */
+	public static Range toRange(double rangeMiles) {
+		return new Range(rangeMiles);
+	}
+
+	/**
+	 * remplit "out" avec la corde au carré entre la position et chaque attraction.
+	 * Boucle volontairement simple (tableaux de double, pas d'appel de méthode) pour que le JIT puisse la vectoriser
+	 * @param point
+	 * @param out
+	 */
+	public void squaredChords(Point point, double[] out) {
+		double px = point.x;
+		double py = point.y;
+		double pz = point.z;
+		for (int i = 0; i < out.length; i++) {
+			double dx = xs[i] - px;
+			double dy = ys[i] - py;
+			double dz = sinLatitudes[i] - pz;
+			out[i] = dx * dx + dy * dy + dz * dz;
+		}
+	}
+
+	/**
+	 * retourne la corde au carré entre la position et l'attraction i
+	 * @param i
+	 * @param point
+	 * @return
+	 */
+	public double squaredChord(int i, Point point) {
+		double dx = xs[i] - point.x;
+		double dy = ys[i] - point.y;
+		double dz = sinLatitudes[i] - point.z;
+		return dx * dx + dy * dy + dz * dz;
+	}
+
+	/**
+	 * retourne VRAI si l'attraction i est à moins de range de la position, exactement comme
+	 * RewardsService.nearAttraction. Pré-filtre sur la latitude (la distance est au moins l'écart de latitude),
+	 * puis la corde tranche les cas nets ; dans la bande autour du rayon, le calcul de référence décide
+	 * @param i
+	 * @param point
+	 * @param range
+	 * @return
+	 */
+	public boolean isWithinRange(int i, Point point, Range range) {
+		if (range.everywhere) {
+			return true;
+		}
+		if (Math.abs(latitudes[i] - point.latitude) > range.upperDegrees) {
+			return false;
+		}
+		double squaredChord = squaredChord(i, point);
+		if (squaredChord <= range.lowerSquaredChord) {
+			return true;
+		}
+		if (squaredChord > range.upperSquaredChord) {
+			return false;
+		}
+		// même test que RewardsService.nearAttraction (une distance NaN est considérée dans le rayon)
+		return !(referenceDistance(latitudes[i], longitudes[i], point.latitude, point.longitude) > range.miles);
+	}
+
+	/**
+	 * retourne la distance en miles entre la position et l'attraction i
+	 * @param i
+	 * @param point
+	 * @return
+	 */
+	public double getDistance(int i, Point point) {
+		return chordToMiles(squaredChord(i, point));
+	}
+
+	/**
+	 * convertit une corde au carré en distance en miles (angle = 2 asin(corde / 2))
+	 * @param squaredChord
+	 * @return
+	 */
+	public static double chordToMiles(double squaredChord) {
+		double angle = 2 * Math.asin(Math.min(1, Math.sqrt(squaredChord) / 2));
+		return Math.toDegrees(angle) * STATUTE_MILES_PER_DEGREE;
+	}
+
+	/**
+	 * calcul de distance de référence (acos de la loi des cosinus), en miles, utilisé par RewardsService.getDistance.
+	 * Le résultat dépend de l'ordre des positions à l'arrondi près : le calcul des récompenses passe l'attraction en premier
+	 * @param latitude1
+	 * @param longitude1
+	 * @param latitude2
+	 * @param longitude2
+	 * @return
+	 */
+	public static double referenceDistance(double latitude1, double longitude1, double latitude2, double longitude2) {
+		double lat1 = Math.toRadians(latitude1);
+		double lon1 = Math.toRadians(longitude1);
+		double lat2 = Math.toRadians(latitude2);
+		double lon2 = Math.toRadians(longitude2);
+
+		double angle = Math.acos(Math.sin(lat1) * Math.sin(lat2)
+				+ Math.cos(lat1) * Math.cos(lat2) * Math.cos(lon1 - lon2));
+
+		double nauticalMiles = 60 * Math.toDegrees(angle);
+		return STATUTE_MILES_PER_NAUTICAL_MILE * nauticalMiles;
+	}
+
+	/**
+	 * position préparée : latitude, sinus / cosinus et coordonnées sur la sphère unité
+	 */
+	public static final class Point {
+		private final double latitude;
+		private final double longitude;
+		private final double x;
+		private final double y;
+		private final double z;
+
+		private Point(Location location) {
+			double latitudeRadian = Math.toRadians(location.latitude);
+			double longitudeRadian = Math.toRadians(location.longitude);
+			double cosLatitude = Math.cos(latitudeRadian);
+			this.latitude = location.latitude;
+			this.longitude = location.longitude;
+			this.x = cosLatitude * Math.cos(longitudeRadian);
+			this.y = cosLatitude * Math.sin(longitudeRadian);
+			this.z = Math.sin(latitudeRadian);
+		}
+
+		public double getX() {
+			return x;
+		}
+
+		public double getY() {
+			return y;
+		}
+
+		public double getZ() {
+			return z;
+		}
+	}
+
+	/**
+	 * rayon préparé : en degrés pour le pré-filtre, en corde au carré pour les cas nets
+	 * (en dessous de range - BOUNDARY_BAND_MILES : dans le rayon, au dessus de range + BOUNDARY_BAND_MILES : hors du rayon)
+	 */
+	public static final class Range {
+		private final double miles;
+		private final double degrees;
+		private final double upperDegrees;
+		private final double squaredChord;
+		private final double lowerSquaredChord;
+		private final double upperSquaredChord;
+		private final boolean everywhere;
+
+		private Range(double rangeMiles) {
+			this.miles = rangeMiles;
+			this.degrees = rangeMiles / STATUTE_MILES_PER_DEGREE;
+			this.upperDegrees = (rangeMiles + BOUNDARY_BAND_MILES) / STATUTE_MILES_PER_DEGREE;
+			// au delà d'un demi tour de terre (ou rayon non numérique), toutes les attractions sont dans le rayon
+			this.everywhere = !(Math.toRadians(degrees) < Math.PI);
+			this.squaredChord = squaredChordOf(rangeMiles);
+			// rayon plus petit que la bande : la corde ne peut rien accepter seule
+			this.lowerSquaredChord = rangeMiles > BOUNDARY_BAND_MILES ? squaredChordOf(rangeMiles - BOUNDARY_BAND_MILES) : -1;
+			this.upperSquaredChord = squaredChordOf(rangeMiles + BOUNDARY_BAND_MILES);
+		}
+
+		private static double squaredChordOf(double rangeMiles) {
+			double angle = Math.toRadians(rangeMiles / STATUTE_MILES_PER_DEGREE);
+			double chord = 2 * Math.sin(Math.min(angle, Math.PI) / 2);
+			return chord * chord;
+		}
+
+		public double getMiles() {
+			return miles;
+		}
+
+		public double getDegrees() {
+			return degrees;
+		}
+
+		public double getSquaredChord() {
+			return squaredChord;
+		}
+
+		/**
+		 * en dessous (ou égal) : dans le rayon sans autre calcul
+		 * @return
+		 */
+		public double getLowerSquaredChord() {
+			return everywhere ? Double.POSITIVE_INFINITY : lowerSquaredChord;
+		}
+
+		/**
+		 * au dessus : hors du rayon sans autre calcul. Entre les deux bornes, referenceDistance décide
+		 * @return
+		 */
+		public double getUpperSquaredChord() {
+			return everywhere ? Double.POSITIVE_INFINITY : upperSquaredChord;
+		}
+
+		public boolean isEverywhere() {
+			return everywhere;
+		}
+	}
+}
@@ -0,0 +1,50 @@
+package com.openclassrooms.tourguide.attraction;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import gpsUtil.location.Attraction;
+
+/**
+ * photographie immuable du catalogue des attractions à un instant donné.
+ * Elle contient le tableau des attractions, son numéro de version et l'index géographique construit dessus.
+ * Une fois publiée elle n'est plus jamais modifiée, on peut donc la lire depuis plusieurs threads sans verrou
+ */
+public final class AttractionSnapshot {
+	private final long version;
+	private final Attraction[] attractions;
+	private final List<Attraction> attractionList;
+	private final AttractionSpatialIndex index;
+
+	public AttractionSnapshot(long version, List<Attraction> attractions) {
+		this.version = version;
+		this.attractions = attractions.toArray(new Attraction[0]);
+		this.attractionList = Collections.unmodifiableList(Arrays.asList(this.attractions));
+		this.index = new AttractionSpatialIndex(this.attractionList);
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	public int size() {
+		return attractions.length;
+	}
+
+	public Attraction get(int i) {
+		return attractions[i];
+	}
+
+	/**
+	 * retourne les attractions sous forme de liste non modifiable (pas de copie)
+	 * @return
+	 */
+	public List<Attraction> getAttractions() {
+		return attractionList;
+	}
+
+	public AttractionSpatialIndex getIndex() {
+		return index;
+	}
+}
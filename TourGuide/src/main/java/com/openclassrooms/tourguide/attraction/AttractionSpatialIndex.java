@@ -0,0 +1,191 @@
+package com.openclassrooms.tourguide.attraction;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import gpsUtil.location.Attraction;
+import gpsUtil.location.Location;
+
+/**
+ * classe qui range les attractions dans une grille latitude / longitude (cases de 1 degré)
+ * pour ne regarder que les attractions proches d'une position au lieu de toutes les parcourir.
+ * La grille ne fait qu'un pré-filtre : elle retourne toujours TOUTES les attractions qui peuvent être
+ * dans le rayon demandé (et éventuellement quelques unes en trop), le test exact de distance reste à faire
+ */
+public class AttractionSpatialIndex {
+	private static final double CELL_SIZE_DEGREES = 1.0;
+	private static final int NB_ROWS = (int) (180 / CELL_SIZE_DEGREES);
+	private static final int NB_COLUMNS = (int) (360 / CELL_SIZE_DEGREES);
+	// marge en degrés pour absorber les erreurs d'arrondi du calcul de distance (acos) au bord du rayon
+	private static final double MARGIN_DEGREES = 1e-5;
+
+	private final List<Attraction> attractions;
+	private final AttractionDistanceKernel kernel;
+	private final Map<Integer, int[]> indicesByCell = new HashMap<>();
+
+	public AttractionSpatialIndex(List<Attraction> attractions) {
+		this.attractions = List.copyOf(attractions);
+		this.kernel = new AttractionDistanceKernel(this.attractions);
+		// je regroupe les indices des attractions par case de la grille
+		Map<Integer, List<Integer>> cells = new HashMap<>();
+		for (int i = 0; i < this.attractions.size(); i++) {
+			Attraction attraction = this.attractions.get(i);
+			cells.computeIfAbsent(cellKey(row(attraction.latitude), column(attraction.longitude)), k -> new ArrayList<>()).add(i);
+		}
+		cells.forEach((key, indices) -> indicesByCell.put(key, indices.stream().mapToInt(Integer::intValue).toArray()));
+	}
+
+	public List<Attraction> getAttractions() {
+		return attractions;
+	}
+
+	/**
+	 * retourne les attractions candidates à moins de rangeMiles de la position, dans l'ordre de la liste d'origine.
+	 * Si le rayon est trop grand pour que la grille serve à quelque chose, toutes les attractions sont retournées
+	 * @param location
+	 * @param rangeMiles
+	 * @return
+	 */
+	public List<Attraction> findCandidates(Location location, double rangeMiles) {
+		int[] candidates = findCandidateIndices(location, rangeMiles);
+		List<Attraction> result = new ArrayList<>(candidates.length);
+		for (int i : candidates) {
+			result.add(attractions.get(i));
+		}
+		return result;
+	}
+
+	/**
+	 * retourne les attractions à moins de rangeMiles de la position, dans l'ordre de la liste d'origine :
+	 * la grille donne les candidates puis AttractionDistanceKernel fait le test (même résultat que RewardsService.nearAttraction,
+	 * y compris au bord du rayon)
+	 * @param location
+	 * @param rangeMiles
+	 * @return
+	 */
+	public List<Attraction> findWithinRange(Location location, double rangeMiles) {
+		AttractionDistanceKernel.Point point = AttractionDistanceKernel.toPoint(location);
+		AttractionDistanceKernel.Range range = AttractionDistanceKernel.toRange(rangeMiles);
+		List<Attraction> result = new ArrayList<>();
+		for (int i : findCandidateIndices(location, rangeMiles)) {
+			if (kernel.isWithinRange(i, point, range)) {
+				result.add(attractions.get(i));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * retourne les indices (triés) des attractions candidates à moins de rangeMiles de la position
+	 * @param location
+	 * @param rangeMiles
+	 * @return
+	 */
+	private int[] findCandidateIndices(Location location, double rangeMiles) {
+		double rangeDegrees = rangeMiles / AttractionDistanceKernel.STATUTE_MILES_PER_DEGREE + MARGIN_DEGREES;
+		if (rangeDegrees >= 90 || Double.isNaN(rangeDegrees)) {
+			return allIndices();
+		}
+		double minLatitude = location.latitude - rangeDegrees;
+		double maxLatitude = location.latitude + rangeDegrees;
+		int firstRow = row(minLatitude);
+		int lastRow = row(maxLatitude);
+		int firstColumn = 0;
+		int nbColumns = NB_COLUMNS;
+		if (minLatitude > -90 && maxLatitude < 90) {
+			// aucun pôle dans le rayon : l'écart de longitude maximum est asin(sin(rayon) / cos(latitude))
+			double sinRange = Math.sin(Math.toRadians(rangeDegrees));
+			double cosLatitude = Math.cos(Math.toRadians(location.latitude));
+			if (sinRange < cosLatitude) {
+				double longitudeRange = Math.toDegrees(Math.asin(sinRange / cosLatitude)) + MARGIN_DEGREES;
+				firstColumn = column(location.longitude - longitudeRange);
+				nbColumns = Math.min(NB_COLUMNS, columnSpan(location.longitude - longitudeRange, location.longitude + longitudeRange));
+			}
+		}
+		// au delà d'un certain nombre de cases, parcourir toute la liste coûte moins cher
+		if ((long) (lastRow - firstRow + 1) * nbColumns > attractions.size()) {
+			return allIndices();
+		}
+		int nbCandidates = 0;
+		int[] candidates = new int[attractions.size()];
+		for (int row = firstRow; row <= lastRow; row++) {
+			for (int i = 0; i < nbColumns; i++) {
+				int[] indices = indicesByCell.get(cellKey(row, (firstColumn + i) % NB_COLUMNS));
+				if (indices != null) {
+					System.arraycopy(indices, 0, candidates, nbCandidates, indices.length);
+					nbCandidates += indices.length;
+				}
+			}
+		}
+		// on remet les candidats dans l'ordre de la liste d'origine
+		Arrays.sort(candidates, 0, nbCandidates);
+		return Arrays.copyOf(candidates, nbCandidates);
+	}
+
+	private int[] allIndices() {
+		int[] indices = new int[attractions.size()];
+		Arrays.setAll(indices, i -> i);
+		return indices;
+	}
+
+	/**
+	 * retourne les nbAttractions attractions les plus proches de la position, de la plus proche à la plus lointaine.
+	 * La distance de chaque attraction n'est calculée qu'une fois (corde au carré, même ordre que la distance)
+	 * et on ne garde que les nbAttractions meilleures
+	 * dans un tas borné (pas de tri de toute la liste). A distance égale, l'ordre de la liste d'origine est conservé
+	 * @param location
+	 * @param nbAttractions
+	 * @return
+	 */
+	public List<Attraction> findNearest(Location location, int nbAttractions) {
+		int k = Math.min(Math.max(nbAttractions, 0), attractions.size());
+		if (k == 0) {
+			return List.of();
+		}
+		double[] distances = new double[attractions.size()];
+		kernel.squaredChords(AttractionDistanceKernel.toPoint(location), distances);
+		// tas "max" : la tête est la plus lointaine des k attractions gardées, c'est elle qu'on remplace
+		Comparator<Integer> fartherFirst = (i1, i2) -> {
+			int comparison = Double.compare(distances[i2], distances[i1]);
+			return comparison != 0 ? comparison : Integer.compare(i2, i1);
+		};
+		PriorityQueue<Integer> nearest = new PriorityQueue<>(k, fartherFirst);
+		for (int i = 0; i < distances.length; i++) {
+			if (nearest.size() < k) {
+				nearest.add(i);
+			} else if (fartherFirst.compare(nearest.peek(), i) < 0) {
+				nearest.poll();
+				nearest.add(i);
+			}
+		}
+		// le tas se vide de la plus lointaine à la plus proche, on remplit donc le tableau par la fin
+		Attraction[] result = new Attraction[k];
+		for (int i = k - 1; i >= 0; i--) {
+			result[i] = attractions.get(nearest.poll());
+		}
+		return Arrays.asList(result);
+	}
+
+	private static int row(double latitude) {
+		int row = (int) Math.floor((latitude + 90) / CELL_SIZE_DEGREES);
+		return Math.max(0, Math.min(NB_ROWS - 1, row));
+	}
+
+	private static int column(double longitude) {
+		return Math.floorMod((int) Math.floor((longitude + 180) / CELL_SIZE_DEGREES), NB_COLUMNS);
+	}
+
+	private static int columnSpan(double minLongitude, double maxLongitude) {
+		return (int) Math.floor((maxLongitude + 180) / CELL_SIZE_DEGREES)
+				- (int) Math.floor((minLongitude + 180) / CELL_SIZE_DEGREES) + 1;
+	}
+
+	private static int cellKey(int row, int column) {
+		return row * NB_COLUMNS + column;
+	}
+}
@@ -0,0 +1,213 @@
+package com.openclassrooms.tourguide.concurrent;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * executor borné et isolé pour un type de traitement (suivi des positions, calcul des récompenses...).
+ * Il exécute au plus "maxConcurrency" tâches en même temps et en garde au plus "queueCapacity" en attente :
+ * au delà, la RejectionPolicy s'applique (backpressure). La mémoire reste donc stable même si 100 000 tâches arrivent d'un coup.
+ * En mode FIXED_POOL c'est un ThreadPoolExecutor avec une file bornée, en mode VIRTUAL_THREADS un thread virtuel
+ * par tâche avec des sémaphores pour les mêmes bornes
+ */
+public class Bulkhead implements Executor {
+	private static Logger logger = LoggerFactory.getLogger(Bulkhead.class);
+	// bulkhead du thread courant, pour ne jamais bloquer un thread du bulkhead sur sa propre file (interblocage)
+	private static final ThreadLocal<Bulkhead> CURRENT = new ThreadLocal<>();
+
+	private final String name;
+	private final ExecutionMode mode;
+	private final RejectionPolicy rejectionPolicy;
+	private final int maxConcurrency;
+	private final int queueCapacity;
+	private final ExecutorService executor;
+	// mode VIRTUAL_THREADS uniquement : places (en cours + en attente) et places d'exécution
+	private final Semaphore admissions;
+	private final Semaphore running;
+	private final AtomicInteger virtualActive = new AtomicInteger();
+
+	public Bulkhead(String name, ExecutionMode mode, int maxConcurrency, int queueCapacity, RejectionPolicy rejectionPolicy) {
+		this.name = name;
+		this.mode = mode;
+		this.maxConcurrency = maxConcurrency;
+		this.queueCapacity = queueCapacity;
+		this.rejectionPolicy = rejectionPolicy;
+		if (mode == ExecutionMode.VIRTUAL_THREADS) {
+			this.admissions = new Semaphore(maxConcurrency + queueCapacity);
+			this.running = new Semaphore(maxConcurrency, true);
+			this.executor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + "-", 0).factory());
+		} else {
+			this.admissions = null;
+			this.running = null;
+			AtomicInteger threadNumber = new AtomicInteger();
+			ThreadPoolExecutor pool = new ThreadPoolExecutor(maxConcurrency, maxConcurrency, 60L, TimeUnit.SECONDS,
+					new ArrayBlockingQueue<>(queueCapacity),
+					runnable -> new Thread(() -> runInside(runnable), name + "-" + threadNumber.getAndIncrement()),
+					rejectedExecutionHandler());
+			// les threads inactifs sont rendus au bout de 60 secondes
+			pool.allowCoreThreadTimeOut(true);
+			this.executor = pool;
+		}
+	}
+
+	@Override
+	public void execute(Runnable task) {
+		if (mode == ExecutionMode.VIRTUAL_THREADS) {
+			executeOnVirtualThread(task);
+		} else {
+			executor.execute(task);
+		}
+	}
+
+	private void executeOnVirtualThread(Runnable task) {
+		if (!admissions.tryAcquire()) {
+			if (!applyPolicy()) {
+				task.run();
+				return;
+			}
+		}
+		try {
+			executor.execute(() -> runInside(() -> {
+				running.acquireUninterruptibly();
+				virtualActive.incrementAndGet();
+				try {
+					task.run();
+				} finally {
+					virtualActive.decrementAndGet();
+					running.release();
+					admissions.release();
+				}
+			}));
+		} catch (RejectedExecutionException e) {
+			admissions.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * mode VIRTUAL_THREADS : applique la politique quand toutes les places sont prises.
+	 * Retourne VRAI si une place a été obtenue, FAUX si l'appelant doit exécuter la tâche lui-même
+	 */
+	private boolean applyPolicy() {
+		if (executor.isShutdown()) {
+			throw new RejectedExecutionException(name + " is shut down");
+		}
+		switch (rejectionPolicy) {
+		case ABORT:
+			throw new RejectedExecutionException(name + " is saturated");
+		case BLOCK:
+			if (CURRENT.get() != this) {
+				admissions.acquireUninterruptibly();
+				return true;
+			}
+			return false;
+		default:
+			return false;
+		}
+	}
+
+	private RejectedExecutionHandler rejectedExecutionHandler() {
+		return (task, pool) -> {
+			if (pool.isShutdown()) {
+				throw new RejectedExecutionException(name + " is shut down");
+			}
+			switch (rejectionPolicy) {
+			case ABORT:
+				throw new RejectedExecutionException(name + " is saturated");
+			case BLOCK:
+				if (CURRENT.get() != this) {
+					try {
+						pool.getQueue().put(task);
+						return;
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new RejectedExecutionException(name + " interrupted while waiting for a free slot", e);
+					}
+				}
+				task.run();
+				return;
+			default:
+				task.run();
+			}
+		};
+	}
+
+	private void runInside(Runnable runnable) {
+		CURRENT.set(this);
+		try {
+			runnable.run();
+		} finally {
+			CURRENT.remove();
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getMaxConcurrency() {
+		return maxConcurrency;
+	}
+
+	public int getQueueCapacity() {
+		return queueCapacity;
+	}
+
+	/**
+	 * nombre de tâches en attente d'exécution
+	 * @return
+	 */
+	public int getQueueDepth() {
+		if (mode == ExecutionMode.VIRTUAL_THREADS) {
+			return Math.max(0, maxConcurrency + queueCapacity - admissions.availablePermits() - virtualActive.get());
+		}
+		return ((ThreadPoolExecutor) executor).getQueue().size();
+	}
+
+	/**
+	 * nombre de tâches en cours d'exécution
+	 * @return
+	 */
+	public int getActiveCount() {
+		if (mode == ExecutionMode.VIRTUAL_THREADS) {
+			return virtualActive.get();
+		}
+		return ((ThreadPoolExecutor) executor).getActiveCount();
+	}
+
+	/**
+	 * n'accepte plus de nouvelles tâches et attend la fin des tâches en cours et en attente, au plus "timeout".
+	 * Les tâches encore présentes après ce délai sont interrompues
+	 * @param timeout
+	 * @param unit
+	 * @return VRAI si toutes les tâches se sont terminées dans le délai
+	 */
+	public boolean shutdown(long timeout, TimeUnit unit) {
+		executor.shutdown();
+		try {
+			if (executor.awaitTermination(timeout, unit)) {
+				return true;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		logger.warn(name + " did not drain within " + timeout + " " + unit + ", interrupting remaining tasks");
+		executor.shutdownNow();
+		return false;
+	}
+
+	public boolean isShutdown() {
+		return executor.isShutdown();
+	}
+}
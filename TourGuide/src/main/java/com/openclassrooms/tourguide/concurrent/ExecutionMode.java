@@ -0,0 +1,25 @@
+package com.openclassrooms.tourguide.concurrent;
+
+/**
+ * mode d'exécution des traitements asynchrones (appels bloquants à gpsUtil et RewardCentral) :
+ * - FIXED_POOL : pool de threads "plateforme" de taille fixe (processeurs * 50 par défaut), comme à l'origine
+ * - VIRTUAL_THREADS : un thread virtuel par tâche, la concurrence vers les librairies externes étant bornée par ExternalCallLimiter
+ * Les executors eux-mêmes sont créés par les Bulkhead de TourGuideExecutors
+ * Le mode par défaut se choisit avec la propriété système "tourguide.execution.mode" (FIXED_POOL si absente)
+ */
+public enum ExecutionMode {
+	FIXED_POOL,
+	VIRTUAL_THREADS;
+
+	public static final String SYSTEM_PROPERTY = "tourguide.execution.mode";
+	public static final int FIXED_POOL_SIZE = Runtime.getRuntime().availableProcessors() * 50;
+
+	/**
+	 * retourne le mode demandé par la propriété système "tourguide.execution.mode", FIXED_POOL par défaut
+	 * @return
+	 */
+	public static ExecutionMode fromSystemProperty() {
+		String mode = System.getProperty(SYSTEM_PROPERTY);
+		return mode == null || mode.isBlank() ? FIXED_POOL : ExecutionMode.valueOf(mode.trim().toUpperCase());
+	}
+}
@@ -0,0 +1,65 @@
+package com.openclassrooms.tourguide.concurrent;
+
+import java.util.concurrent.Semaphore;
+import java.util.function.Supplier;
+
+/**
+ * limite le nombre d'appels simultanés vers une librairie externe (gpsUtil, RewardCentral).
+ * Avec les threads virtuels, rien ne borne plus le nombre de tâches qui appellent la librairie en même temps :
+ * au delà de "maxConcurrentCalls" les appelants attendent leur tour (un thread virtuel qui attend ne coûte presque rien)
+ */
+public class ExternalCallLimiter {
+	private final String name;
+	private final Semaphore permits;
+	private final int maxConcurrentCalls;
+
+	public ExternalCallLimiter(String name, int maxConcurrentCalls) {
+		this.name = name;
+		this.maxConcurrentCalls = maxConcurrentCalls;
+		this.permits = new Semaphore(maxConcurrentCalls, true);
+	}
+
+	/**
+	 * exécute l'appel dès qu'une place est libre et retourne son résultat
+	 * @param <T>
+	 * @param call
+	 * @return
+	 */
+	public <T> T call(Supplier<T> call) {
+		try {
+			permits.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting to call " + name, e);
+		}
+		try {
+			return call.get();
+		} finally {
+			permits.release();
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getMaxConcurrentCalls() {
+		return maxConcurrentCalls;
+	}
+
+	/**
+	 * nombre d'appels en cours
+	 * @return
+	 */
+	public int getActiveCalls() {
+		return maxConcurrentCalls - permits.availablePermits();
+	}
+
+	/**
+	 * nombre (approximatif) d'appelants qui attendent une place
+	 * @return
+	 */
+	public int getWaitingCalls() {
+		return permits.getQueueLength();
+	}
+}
@@ -0,0 +1,210 @@
+package com.openclassrooms.tourguide.concurrent;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * registre des traitements en cours, par clé (l'identifiant d'un utilisateur par exemple).
+ * Il remplace les HashMap statiques de futurs : il est sûr en accès concurrent, propre à chaque service,
+ * et une entrée est retirée dès que son traitement se termine (la taille du registre reste celle du travail en cours)
+ * @param <K>
+ */
+public class InFlightRegistry<K> {
+	private static Logger logger = LoggerFactory.getLogger(InFlightRegistry.class);
+	private final String name;
+	private final Map<K, CompletableFuture<?>> inFlight = new ConcurrentHashMap<>();
+	private final LongAdder joins = new LongAdder();
+
+	public InFlightRegistry(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * enregistre le traitement retourné par "starter" pour la clé. "starter" reçoit le traitement encore en cours
+	 * pour cette clé (null s'il n'y en a pas) : il peut le réutiliser, s'enchainer derrière ou l'ignorer.
+	 * L'enregistrement est atomique pour une clé donnée : un futur "réservé" est installé dans la map,
+	 * puis "starter" est appelé hors de la map (un starter qui exécute le traitement dans le thread appelant
+	 * ou qui attend une place dans un bulkhead ne bloque donc jamais la map) et son résultat est reporté sur le futur réservé
+	 * @param <T>
+	 * @param key
+	 * @param starter
+	 * @return le traitement enregistré
+	 */
+	public <T> CompletableFuture<T> start(K key, Function<CompletableFuture<?>, CompletableFuture<T>> starter) {
+		CompletableFuture<T> reserved = new CompletableFuture<>();
+		CompletableFuture<?>[] previous = new CompletableFuture<?>[1];
+		inFlight.compute(key, (k, current) -> {
+			previous[0] = current == null || current.isDone() ? null : current;
+			return reserved;
+		});
+		launch(key, reserved, () -> starter.apply(previous[0]));
+		return reserved;
+	}
+
+	/**
+	 * "single-flight" : retourne le traitement en cours pour la clé s'il y en a un, sinon enregistre et retourne
+	 * celui de "starter". "starter" peut retourner null s'il n'y a rien à lancer (rien n'est alors enregistré).
+	 * La décision est atomique pour une clé donnée : quel que soit le nombre d'appelants simultanés, un seul traitement est lancé.
+	 * Comme pour start, "starter" est appelé hors de la map
+	 * @param <T>
+	 * @param key
+	 * @param starter
+	 * @return le traitement en cours ou lancé, null si starter n'a rien lancé
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> CompletableFuture<T> joinOrStart(K key, Supplier<CompletableFuture<T>> starter) {
+		CompletableFuture<T> reserved = new CompletableFuture<>();
+		Object[] registered = new Object[1];
+		inFlight.compute(key, (k, current) -> {
+			registered[0] = current != null && !current.isDone() ? current : reserved;
+			return (CompletableFuture<?>) registered[0];
+		});
+		if (registered[0] != reserved) {
+			joins.increment();
+			return (CompletableFuture<T>) registered[0];
+		}
+		return launch(key, reserved, starter) ? reserved : null;
+	}
+
+	/**
+	 * appelle "starter" (hors de la map) et reporte le résultat de son traitement sur le futur réservé,
+	 * qui est retiré de la map dès qu'il se termine.
+	 * Retourne FAUX si "starter" n'a rien lancé (le futur réservé est alors terminé et retiré tout de suite)
+	 */
+	private <T> boolean launch(K key, CompletableFuture<T> reserved, Supplier<CompletableFuture<T>> starter) {
+		reserved.whenComplete((result, e) -> inFlight.remove(key, reserved));
+		CompletableFuture<T> started;
+		try {
+			started = starter.get();
+		} catch (Throwable e) {
+			reserved.completeExceptionally(e);
+			throw e;
+		}
+		if (started == null) {
+			reserved.complete(null);
+			return false;
+		}
+		started.whenComplete((result, e) -> {
+			if (e != null) {
+				reserved.completeExceptionally(e);
+			} else {
+				reserved.complete(result);
+			}
+		});
+		return true;
+	}
+
+	/**
+	 * nombre d'appels à joinOrStart qui ont rejoint un traitement déjà en cours
+	 * @return
+	 */
+	public long getJoinCount() {
+		return joins.sum();
+	}
+
+	/**
+	 * retourne VRAI si un traitement est en cours pour la clé (appel non bloquant)
+	 * @param key
+	 * @return
+	 */
+	public boolean isPending(K key) {
+		CompletableFuture<?> futur = inFlight.get(key);
+		return futur != null && !futur.isDone();
+	}
+
+	/**
+	 * attend la fin du traitement en cours pour la clé, s'il y en a un
+	 * @param key
+	 */
+	public void await(K key) {
+		CompletableFuture<?> futur = inFlight.get(key);
+		if (futur != null) {
+			try {
+				futur.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException e) {
+				logger.debug(name + " computation failed for " + key, e);
+			}
+		}
+	}
+
+	/**
+	 * attend la fin du traitement en cours pour la clé, au plus "timeout"
+	 * @param key
+	 * @param timeout
+	 * @param unit
+	 * @return VRAI s'il n'y a plus de traitement en cours pour la clé, FAUX si le délai est dépassé
+	 */
+	public boolean await(K key, long timeout, TimeUnit unit) {
+		CompletableFuture<?> futur = inFlight.get(key);
+		if (futur == null) {
+			return true;
+		}
+		try {
+			futur.get(timeout, unit);
+		} catch (TimeoutException e) {
+			return false;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} catch (ExecutionException e) {
+			logger.debug(name + " computation failed for " + key, e);
+		}
+		return true;
+	}
+
+	/**
+	 * retourne un futur qui se termine quand le traitement en cours pour la clé est fini (qu'il ait réussi ou non),
+	 * ou un futur déjà terminé s'il n'y a rien en cours. Ne bloque jamais
+	 * @param key
+	 * @return
+	 */
+	public CompletableFuture<Void> whenDone(K key) {
+		CompletableFuture<?> futur = inFlight.get(key);
+		if (futur == null) {
+			return CompletableFuture.completedFuture(null);
+		}
+		return futur.handle((result, e) -> null);
+	}
+
+	/**
+	 * retourne une poignée qui attend le traitement en cours pour la clé, à confier à un objet qui ne doit pas connaitre
+	 * le registre (User.getUserRewards). Comme await, elle lit la map puis attend le futur hors de la map
+	 * @param key
+	 * @return
+	 */
+	public Handle handle(K key) {
+		return () -> await(key);
+	}
+
+	/**
+	 * nombre de traitements en cours
+	 * @return
+	 */
+	public int size() {
+		return inFlight.size();
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * attente du traitement en cours pour une clé du registre
+	 */
+	@FunctionalInterface
+	public interface Handle {
+		void await();
+	}
+}
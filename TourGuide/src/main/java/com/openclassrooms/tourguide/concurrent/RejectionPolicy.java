@@ -0,0 +1,15 @@
+package com.openclassrooms.tourguide.concurrent;
+
+/**
+ * ce que fait un Bulkhead quand sa file d'attente est pleine :
+ * - CALLER_RUNS : le thread qui soumet la tâche l'exécute lui-même (il ralentit donc naturellement).
+ *   À éviter pour une boucle qui lance beaucoup de tâches bloquantes : elle les exécuterait une à une
+ * - BLOCK : le thread qui soumet la tâche attend qu'une place se libère dans la file (politique par défaut).
+ *   Un thread du bulkhead qui soumet dans son propre bulkhead exécute la tâche lui-même (pas d'interblocage)
+ * - ABORT : la tâche est refusée avec une RejectedExecutionException
+ */
+public enum RejectionPolicy {
+	CALLER_RUNS,
+	BLOCK,
+	ABORT
+}
@@ -0,0 +1,112 @@
+package com.openclassrooms.tourguide.concurrent;
+
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * sous-système d'exécution unique de l'application : un Bulkhead pour le suivi des positions (gpsUtil)
+ * et un Bulkhead pour le calcul des récompenses (RewardCentral), chacun borné avec sa propre file.
+ * Une saturation du calcul des récompenses ne bloque donc pas le suivi des positions, et inversement.
+ * Il porte aussi la limite des appels simultanés à gpsUtil et à TripPricer, réglée comme celle de RewardCentral (max-concurrent-external-calls),
+ * et le petit Bulkhead des mises à jour en tâche de fond des offres de voyage, qui refuse les mises à jour quand il est plein
+ * (ABORT : elles ne sont jamais exécutées dans le thread de la requête).
+ * Déclaré comme bean Spring dans TourGuideModule : shutdown() est appelé à l'arrêt de l'application
+ */
+public class TourGuideExecutors {
+	private static Logger logger = LoggerFactory.getLogger(TourGuideExecutors.class);
+	public static final int DEFAULT_QUEUE_CAPACITY = 10000;
+	// les producteurs en rafale (tracker, calcul des récompenses en lot) attendent une place dans la file
+	// au lieu d'exécuter eux-mêmes les appels bloquants à gpsUtil / RewardCentral (CALLER_RUNS)
+	public static final RejectionPolicy DEFAULT_REJECTION_POLICY = RejectionPolicy.BLOCK;
+	public static final long DEFAULT_SHUTDOWN_TIMEOUT_SECONDS = 30;
+	static final int TRIP_DEALS_REFRESH_CONCURRENCY = 2;
+	static final int TRIP_DEALS_REFRESH_QUEUE_CAPACITY = 100;
+
+	private final ExecutionMode mode;
+	private final Bulkhead tracking;
+	private final Bulkhead rewards;
+	private final Bulkhead tripDealsRefresh;
+	// borne le nombre d'appels simultanés à gpsUtil (le suivi des positions)
+	private final ExternalCallLimiter gpsUtilLimiter;
+	private final ExternalCallLimiter tripPricerLimiter;
+	private final long shutdownTimeoutSeconds;
+
+	public TourGuideExecutors(ExecutionMode mode) {
+		this(mode, ExecutionMode.FIXED_POOL_SIZE, ExecutionMode.FIXED_POOL_SIZE, DEFAULT_QUEUE_CAPACITY,
+				DEFAULT_REJECTION_POLICY, DEFAULT_SHUTDOWN_TIMEOUT_SECONDS);
+	}
+
+	public TourGuideExecutors(ExecutionMode mode, int trackingConcurrency, int rewardsConcurrency, int queueCapacity,
+			RejectionPolicy rejectionPolicy, long shutdownTimeoutSeconds) {
+		this(mode, trackingConcurrency, rewardsConcurrency, queueCapacity, rejectionPolicy, shutdownTimeoutSeconds,
+				ExecutionMode.FIXED_POOL_SIZE);
+	}
+
+	public TourGuideExecutors(ExecutionMode mode, int trackingConcurrency, int rewardsConcurrency, int queueCapacity,
+			RejectionPolicy rejectionPolicy, long shutdownTimeoutSeconds, int maxConcurrentExternalCalls) {
+		this.mode = mode;
+		this.tracking = new Bulkhead("tracking", mode, trackingConcurrency, queueCapacity, rejectionPolicy);
+		this.rewards = new Bulkhead("rewards", mode, rewardsConcurrency, queueCapacity, rejectionPolicy);
+		this.tripDealsRefresh = new Bulkhead("tripDealsRefresh", mode, TRIP_DEALS_REFRESH_CONCURRENCY, TRIP_DEALS_REFRESH_QUEUE_CAPACITY,
+				RejectionPolicy.ABORT);
+		this.gpsUtilLimiter = new ExternalCallLimiter("gpsUtil", maxConcurrentExternalCalls);
+		this.tripPricerLimiter = new ExternalCallLimiter("tripPricer", maxConcurrentExternalCalls);
+		this.shutdownTimeoutSeconds = shutdownTimeoutSeconds;
+	}
+
+	public ExecutionMode getMode() {
+		return mode;
+	}
+
+	/**
+	 * bulkhead du suivi des positions (appels à gpsUtil)
+	 * @return
+	 */
+	public Bulkhead tracking() {
+		return tracking;
+	}
+
+	/**
+	 * bulkhead du calcul des récompenses (appels à RewardCentral)
+	 * @return
+	 */
+	public Bulkhead rewards() {
+		return rewards;
+	}
+
+	/**
+	 * bulkhead des mises à jour en tâche de fond des offres de voyage (appels à TripPricer)
+	 * @return
+	 */
+	public Bulkhead tripDealsRefresh() {
+		return tripDealsRefresh;
+	}
+
+	/**
+	 * limite des appels simultanés à gpsUtil
+	 * @return
+	 */
+	public ExternalCallLimiter gpsUtilLimiter() {
+		return gpsUtilLimiter;
+	}
+
+	/**
+	 * limite des appels simultanés à TripPricer
+	 * @return
+	 */
+	public ExternalCallLimiter tripPricerLimiter() {
+		return tripPricerLimiter;
+	}
+
+	/**
+	 * vide puis arrête les bulkheads : le suivi des positions d'abord, car il alimente le calcul des récompenses
+	 */
+	public void shutdown() {
+		logger.debug("Shutting down executors");
+		tracking.shutdown(shutdownTimeoutSeconds, TimeUnit.SECONDS);
+		rewards.shutdown(shutdownTimeoutSeconds, TimeUnit.SECONDS);
+		tripDealsRefresh.shutdown(shutdownTimeoutSeconds, TimeUnit.SECONDS);
+	}
+}
@@ -0,0 +1,62 @@
+package com.openclassrooms.tourguide.dto;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+/**
+ * sérialisation Json des DTO avec l'ObjectMapper de l'application (celui de Spring, déclaré dans TourGuideModule) :
+ * un ObjectWriter par type de DTO créé au premier usage puis réutilisé (ils sont immuables et sûrs en accès concurrent).
+ * Le Json peut être écrit directement dans le flux de la réponse, sans passer par une String
+ */
+public final class JsonWriters {
+	private final ObjectMapper mapper;
+	private final Map<Class<?>, ObjectWriter> writers = new ConcurrentHashMap<>();
+
+	/**
+	 * @param mapper l'ObjectMapper n'est pas modifié : sa configuration (modules, dates...) s'applique aux ObjectWriter
+	 */
+	public JsonWriters(ObjectMapper mapper) {
+		this.mapper = mapper;
+	}
+
+	/**
+	 * retourne l'ObjectWriter partagé pour le type
+	 * @param type
+	 * @return
+	 */
+	public ObjectWriter writerFor(Class<?> type) {
+		// le flux de la réponse appartient à l'appelant, on ne le ferme pas
+		return writers.computeIfAbsent(type, t -> mapper.writerFor(t).without(JsonGenerator.Feature.AUTO_CLOSE_TARGET));
+	}
+
+	/**
+	 * écrit l'objet en Json dans le flux (le flux n'est pas fermé)
+	 * @param value
+	 * @param out
+	 * @throws IOException
+	 */
+	public void writeTo(Object value, OutputStream out) throws IOException {
+		writerFor(value.getClass()).writeValue(out, value);
+	}
+
+	/**
+	 * transcrit l'objet en String au format Json
+	 * @param value
+	 * @return
+	 */
+	public String toJson(Object value) {
+		try {
+			return writerFor(value.getClass()).writeValueAsString(value);
+		} catch (JsonProcessingException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+}
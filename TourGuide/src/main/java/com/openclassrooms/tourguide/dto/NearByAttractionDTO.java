@@ -2,9 +2,6 @@ package com.openclassrooms.tourguide.dto;
 
 import java.util.List;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
-
 import gpsUtil.location.Location;
 import gpsUtil.location.VisitedLocation;
 
@@ -37,20 +34,6 @@ public class NearByAttractionDTO {
 		this.attractionInformation = attractionInformation;
 	}
 
-	/**
-	 * transcrit un objet NearAttractionDTO en string au format Json 
-	 * @return
-	 */
-	public String toJson() {
-		ObjectMapper mapper = new ObjectMapper();
-		String json = "";
-		try {
-			json = mapper.writeValueAsString(this);
-		} catch (JsonProcessingException e) {
-			e.printStackTrace();
-		}
-		return json;
-	}
 
 	
 
@@ -0,0 +1,90 @@
+package com.openclassrooms.tourguide.helper;
+
+import java.util.Date;
+import java.util.SplittableRandom;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+
+import com.openclassrooms.tourguide.user.User;
+
+import gpsUtil.location.Location;
+import gpsUtil.location.VisitedLocation;
+
+/**
+ * générateur des utilisateurs de test, reproductible à partir d'une graine.
+ * Chaque utilisateur a son propre générateur (SplittableRandom) dont la graine est dérivée de la graine globale et
+ * de son numéro : l'utilisateur n°i est toujours le même pour une graine donnée, quel que soit l'ordre de génération,
+ * ce qui permet de générer en parallèle (et des millions d'utilisateurs pour les benchmarks) sans partager de générateur
+ */
+public class InternalUserGenerator {
+	public static final int HISTORY_SIZE = 3;
+	private static final double MAX_LATITUDE = 85.05112878;
+	private static final int MAX_DAYS_AGO = 30;
+	private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+	private final long seed;
+	// date de référence des endroits visités générés (au plus MAX_DAYS_AGO jours avant)
+	private final long referenceTime;
+	// nombre d'endroits visités générés par utilisateur
+	private final int historySize;
+
+	public InternalUserGenerator(long seed) {
+		this(seed, System.currentTimeMillis());
+	}
+
+	public InternalUserGenerator(long seed, long referenceTime) {
+		this(seed, referenceTime, HISTORY_SIZE);
+	}
+
+	public InternalUserGenerator(long seed, long referenceTime, int historySize) {
+		this.seed = seed;
+		this.referenceTime = referenceTime;
+		this.historySize = historySize;
+	}
+
+	/**
+	 * génère en parallèle les utilisateurs n°0 à count - 1 et les transmet à "sink" (appelé depuis plusieurs threads)
+	 * @param count
+	 * @param sink
+	 */
+	public void generate(int count, Consumer<User> sink) {
+		IntStream.range(0, count).parallel().forEach(i -> sink.accept(generate(i)));
+	}
+
+	/**
+	 * génère l'utilisateur n°index, avec un historique de historySize endroits visités
+	 * @param index
+	 * @return
+	 */
+	public User generate(int index) {
+		SplittableRandom random = new SplittableRandom(mix(seed + (index + 1) * GOLDEN_GAMMA));
+		String userName = "internalUser" + index;
+		User user = new User(randomUUID(random), userName, "000", userName + "@tourGuide.com");
+		for (int i = 0; i < historySize; i++) {
+			Location location = new Location(random.nextDouble(-MAX_LATITUDE, MAX_LATITUDE), random.nextDouble(-180, 180));
+			Date timeVisited = new Date(referenceTime - TimeUnit.DAYS.toMillis(random.nextInt(MAX_DAYS_AGO)));
+			user.addToVisitedLocations(new VisitedLocation(user.getUserId(), location, timeVisited));
+		}
+		return user;
+	}
+
+	public long getSeed() {
+		return seed;
+	}
+
+	// UUID de version 4 tiré du générateur de l'utilisateur
+	private static UUID randomUUID(SplittableRandom random) {
+		long mostSigBits = (random.nextLong() & ~0xF000L) | 0x4000L;
+		long leastSigBits = (random.nextLong() & 0x3FFFFFFFFFFFFFFFL) | 0x8000000000000000L;
+		return new UUID(mostSigBits, leastSigBits);
+	}
+
+	// mélange de SplitMix64 : des graines voisines donnent des générateurs indépendants
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+}
@@ -0,0 +1,92 @@
+package com.openclassrooms.tourguide.metrics;
+
+import org.springframework.stereotype.Component;
+
+import com.openclassrooms.tourguide.concurrent.Bulkhead;
+import com.openclassrooms.tourguide.concurrent.ExternalCallLimiter;
+import com.openclassrooms.tourguide.service.RewardPointsCache;
+import com.openclassrooms.tourguide.service.RewardsService;
+import com.openclassrooms.tourguide.service.TourGuideService;
+import com.openclassrooms.tourguide.service.TripDealCache;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/**
+ * jauges et compteurs lus sur les composants du TourGuideService utilisé par l'application :
+ * bulkheads (file d'attente, threads actifs), traitements en cours, limiteurs d'appels externes,
+ * caches des points de récompense et des offres de voyage, récompenses accordées. Spring Boot lie automatiquement ce MeterBinder à ses registres
+ */
+@Component
+public class TourGuideMeterBinder implements MeterBinder {
+	private final TourGuideService tourGuideService;
+
+	public TourGuideMeterBinder(TourGuideService tourGuideService) {
+		this.tourGuideService = tourGuideService;
+	}
+
+	@Override
+	public void bindTo(MeterRegistry registry) {
+		RewardsService rewardsService = tourGuideService.getRewardsService();
+		bindBulkhead(registry, rewardsService.getExecutors().tracking());
+		bindBulkhead(registry, rewardsService.getExecutors().rewards());
+		bindBulkhead(registry, rewardsService.getExecutors().tripDealsRefresh());
+
+		Gauge.builder("tourguide.inflight", tourGuideService, TourGuideService::getLocationsInFlightCount)
+				.description("traitements en cours").tag("registry", "location").register(registry);
+		Gauge.builder("tourguide.inflight", rewardsService, RewardsService::getRewardsInFlightCount)
+				.description("traitements en cours").tag("registry", "rewards").register(registry);
+
+		FunctionCounter.builder("tourguide.location.refresh.joins", tourGuideService, TourGuideService::getLocationRefreshJoinCount)
+				.description("demandes de mise à jour de position qui ont rejoint une mise à jour en cours").register(registry);
+
+		bindLimiter(registry, tourGuideService.getGpsUtilLimiter());
+		RewardPointsCache rewardPointsCache = rewardsService.getRewardPointsCache();
+		bindLimiter(registry, rewardPointsCache.getRewardCentralLimiter());
+
+		FunctionCounter.builder("tourguide.reward.points.cache.requests", rewardPointsCache, RewardPointsCache::getHitCount)
+				.tag("result", "hit").register(registry);
+		FunctionCounter.builder("tourguide.reward.points.cache.requests", rewardPointsCache, RewardPointsCache::getMissCount)
+				.tag("result", "miss").register(registry);
+		FunctionCounter.builder("tourguide.reward.points.cache.requests", rewardPointsCache, RewardPointsCache::getInFlightJoinCount)
+				.tag("result", "inflight").register(registry);
+		FunctionCounter.builder("tourguide.reward.points.cache.evictions", rewardPointsCache, RewardPointsCache::getEvictionCount)
+				.register(registry);
+		Gauge.builder("tourguide.reward.points.cache.size", rewardPointsCache, RewardPointsCache::size)
+				.register(registry);
+
+		TripDealCache tripDealCache = tourGuideService.getTripDealCache();
+		bindLimiter(registry, tripDealCache.getTripPricerLimiter());
+		FunctionCounter.builder("tourguide.trip.deals.cache.requests", tripDealCache, TripDealCache::getHitCount)
+				.tag("result", "hit").register(registry);
+		FunctionCounter.builder("tourguide.trip.deals.cache.requests", tripDealCache, TripDealCache::getMissCount)
+				.tag("result", "miss").register(registry);
+		FunctionCounter.builder("tourguide.trip.deals.cache.requests", tripDealCache, TripDealCache::getInFlightJoinCount)
+				.tag("result", "inflight").register(registry);
+		FunctionCounter.builder("tourguide.trip.deals.cache.requests", tripDealCache, TripDealCache::getStaleHitCount)
+				.tag("result", "stale").register(registry);
+		FunctionCounter.builder("tourguide.trip.deals.cache.evictions", tripDealCache, TripDealCache::getEvictionCount)
+				.register(registry);
+		Gauge.builder("tourguide.trip.deals.cache.size", tripDealCache, TripDealCache::size)
+				.register(registry);
+
+		FunctionCounter.builder("tourguide.rewards.granted", rewardsService, RewardsService::getRewardsGrantedCount)
+				.description("récompenses accordées aux utilisateurs").register(registry);
+	}
+
+	private static void bindBulkhead(MeterRegistry registry, Bulkhead bulkhead) {
+		Gauge.builder("tourguide.executor.queue.depth", bulkhead, Bulkhead::getQueueDepth)
+				.description("tâches en attente dans le bulkhead").tag("bulkhead", bulkhead.getName()).register(registry);
+		Gauge.builder("tourguide.executor.active", bulkhead, Bulkhead::getActiveCount)
+				.description("tâches en cours d'exécution dans le bulkhead").tag("bulkhead", bulkhead.getName()).register(registry);
+	}
+
+	private static void bindLimiter(MeterRegistry registry, ExternalCallLimiter limiter) {
+		Gauge.builder("tourguide.external.calls.active", limiter, ExternalCallLimiter::getActiveCalls)
+				.tag("service", limiter.getName()).register(registry);
+		Gauge.builder("tourguide.external.calls.waiting", limiter, ExternalCallLimiter::getWaitingCalls)
+				.tag("service", limiter.getName()).register(registry);
+	}
+}
@@ -0,0 +1,43 @@
+package com.openclassrooms.tourguide.metrics;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * mesures de durée de TourGuide (appels externes, calcul des récompenses, travail du tracker).
+ * Elles sont enregistrées dans le registre global de Micrometer : les services créés à la main (tests, benchmarks)
+ * n'ont rien à configurer, et Spring Boot y ajoute ses registres (actuator metrics / prometheus)
+ * grâce à management.metrics.use-global-registry (vrai par défaut).
+ * Les jauges (files d'attente, traitements en cours...) sont dans TourGuideMeterBinder
+ */
+public final class TourGuideMetrics {
+	// durée d'un appel à gpsUtil.getUserLocation (sans l'attente du limiteur)
+	public static final Timer GPS_UTIL_LATENCY = latencyTimer("tourguide.gpsutil.latency", "durée d'un appel à gpsUtil.getUserLocation");
+	// durée d'un appel à RewardCentral.getAttractionRewardPoints (sans l'attente du limiteur)
+	public static final Timer REWARD_CENTRAL_LATENCY = latencyTimer("tourguide.rewardcentral.latency", "durée d'un appel à RewardCentral.getAttractionRewardPoints");
+	// durée d'un appel à TripPricer.getPrice (sans l'attente du limiteur)
+	public static final Timer TRIP_PRICER_LATENCY = latencyTimer("tourguide.trippricer.latency", "durée d'un appel à TripPricer.getPrice");
+	// durée du calcul des récompenses d'un utilisateur (calculateRewardsCore)
+	public static final Timer REWARDS_CALCULATION = latencyTimer("tourguide.rewards.calculation", "durée du calcul des récompenses d'un utilisateur");
+	// temps passé par le tracker à lancer les mises à jour de tous les utilisateurs pendant un cycle,
+	// sans les attentes entre deux ticks (la durée totale d'un cycle est à peu près l'intervalle de mise à jour)
+	public static final Timer TRACKER_CYCLE_WORK = Timer.builder("tourguide.tracker.cycle.work")
+			.description("temps passé à lancer les mises à jour pendant un cycle du tracker, hors attentes")
+			.register(Metrics.globalRegistry);
+	// nombre de récompenses accordées pendant un cycle du tracker
+	public static final DistributionSummary REWARDS_GRANTED_PER_CYCLE = DistributionSummary.builder("tourguide.tracker.cycle.rewards.granted")
+			.description("récompenses accordées pendant un cycle du tracker")
+			.register(Metrics.globalRegistry);
+
+	private TourGuideMetrics() {
+	}
+
+	// histogramme publié pour pouvoir calculer les percentiles (latence de queue) côté Prometheus
+	private static Timer latencyTimer(String name, String description) {
+		return Timer.builder(name)
+				.description(description)
+				.publishPercentileHistogram()
+				.register(Metrics.globalRegistry);
+	}
+}
@@ -0,0 +1,90 @@
+package com.openclassrooms.tourguide.service;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import com.openclassrooms.tourguide.concurrent.ExecutionMode;
+import com.openclassrooms.tourguide.concurrent.ExternalCallLimiter;
+import com.openclassrooms.tourguide.metrics.TourGuideMetrics;
+
+import rewardCentral.RewardCentral;
+
+/**
+ * cache des points de récompense devant RewardCentral (appel lent), partagé par RewardsService et TourGuideService.
+ * La clé est le couple (attractionId, userId). Les entrées expirent au bout de "ttl" et le cache est borné en taille.
+ * Si plusieurs threads demandent en même temps les points d'un couple absent, un seul appelle RewardCentral,
+ * les autres attendent son résultat (voir SingleFlightCache)
+ */
+public class RewardPointsCache {
+	public static final long DEFAULT_TTL_MINUTES = 30;
+	public static final int DEFAULT_MAX_SIZE = 200000;
+
+	private final RewardCentral rewardCentral;
+	// borne le nombre d'appels simultanés à RewardCentral
+	private final ExternalCallLimiter rewardCentralLimiter;
+	private final SingleFlightCache<Key, Integer> cache;
+
+	public RewardPointsCache(RewardCentral rewardCentral) {
+		this(rewardCentral, TimeUnit.MINUTES.toMillis(DEFAULT_TTL_MINUTES), DEFAULT_MAX_SIZE);
+	}
+
+	public RewardPointsCache(RewardCentral rewardCentral, long ttlMillis, int maxSize) {
+		this(rewardCentral, ttlMillis, maxSize, new ExternalCallLimiter("rewardCentral", ExecutionMode.FIXED_POOL_SIZE));
+	}
+
+	public RewardPointsCache(RewardCentral rewardCentral, long ttlMillis, int maxSize, ExternalCallLimiter rewardCentralLimiter) {
+		this.rewardCentral = rewardCentral;
+		this.rewardCentralLimiter = rewardCentralLimiter;
+		this.cache = new SingleFlightCache<>("rewardPoints", this::load, ttlMillis, maxSize, null);
+	}
+
+	/**
+	 * retourne le nombre de points de l'attraction pour l'utilisateur, depuis le cache si possible
+	 * @param attractionId
+	 * @param userId
+	 * @return
+	 */
+	public int getAttractionRewardPoints(UUID attractionId, UUID userId) {
+		return cache.get(new Key(attractionId, userId));
+	}
+
+	public ExternalCallLimiter getRewardCentralLimiter() {
+		return rewardCentralLimiter;
+	}
+
+	public long getHitCount() {
+		return cache.getHitCount();
+	}
+
+	public long getMissCount() {
+		return cache.getMissCount();
+	}
+
+	/**
+	 * nombre de demandes qui ont attendu un appel à RewardCentral déjà en cours pour le même couple
+	 * @return
+	 */
+	public long getInFlightJoinCount() {
+		return cache.getInFlightJoinCount();
+	}
+
+	public long getEvictionCount() {
+		return cache.getEvictionCount();
+	}
+
+	public int size() {
+		return cache.size();
+	}
+
+	public void clear() {
+		cache.clear();
+	}
+
+	private Integer load(Key key) {
+		return rewardCentralLimiter.call(() -> TourGuideMetrics.REWARD_CENTRAL_LATENCY.record(
+				() -> rewardCentral.getAttractionRewardPoints(key.attractionId(), key.userId())));
+	}
+
+	private record Key(UUID attractionId, UUID userId) {
+	}
+}
@@ -1,24 +1,31 @@
 package com.openclassrooms.tourguide.service;
 
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
-import com.openclassrooms.tourguide.tracker.Tracker;
+import jakarta.annotation.PreDestroy;
+
+import com.openclassrooms.tourguide.attraction.AttractionCatalog;
+import com.openclassrooms.tourguide.attraction.AttractionDistanceKernel;
+import com.openclassrooms.tourguide.attraction.AttractionSnapshot;
+import com.openclassrooms.tourguide.attraction.AttractionSpatialIndex;
+import com.openclassrooms.tourguide.concurrent.ExecutionMode;
+import com.openclassrooms.tourguide.concurrent.InFlightRegistry;
+import com.openclassrooms.tourguide.concurrent.TourGuideExecutors;
+import com.openclassrooms.tourguide.metrics.TourGuideMetrics;
 import com.openclassrooms.tourguide.user.User;
 import com.openclassrooms.tourguide.user.UserReward;
+import com.openclassrooms.tourguide.user.UserRewardStore;
+import com.openclassrooms.tourguide.user.VisitedLocationLog;
 
 import gpsUtil.GpsUtil;
 import gpsUtil.location.Attraction;
@@ -28,20 +35,62 @@ import rewardCentral.RewardCentral;
 
 @Service
 public class RewardsService {
-	private static Logger logger = LoggerFactory.getLogger(Tracker.class);
-    private static final double STATUTE_MILES_PER_NAUTICAL_MILE = 1.15077945;
-    private static Map<UUID, CompletableFuture> futurByUserId = new HashMap<>();
+    // calculs de récompenses en cours, par utilisateur (une entrée disparait quand le calcul se termine)
+    private final InFlightRegistry<UUID> rewardsInFlight = new InFlightRegistry<>("rewards");
+    // nombre total de récompenses accordées (métrique tourguide.rewards.granted)
+    private final LongAdder rewardsGranted = new LongAdder();
 	// proximity in miles
     private int defaultProximityBuffer = 10;
 	private int proximityBuffer = defaultProximityBuffer;
 	private int attractionProximityRange = 200;
-	private final GpsUtil gpsUtil;
-	private final RewardCentral rewardsCentral;
-	private final ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors()*50);
+	// cache des points de récompense devant RewardCentral
+	private final RewardPointsCache rewardPointsCache;
+	// catalogue des attractions chargé une fois, lu sans verrou
+	private final AttractionCatalog attractionCatalog;
+	// sous-système d'exécution partagé avec TourGuideService, le calcul des récompenses a son propre bulkhead
+	private final TourGuideExecutors executors;
+	private final Executor executor;
+	// VRAI si les executors ont été créés par ce service : c'est alors lui qui les arrête (cf shutdown)
+	private final boolean ownsExecutors;
 	
+	/**
+	 * crée un service avec ses propres executors, arrêtés par shutdown()
+	 * @param gpsUtil
+	 * @param rewardCentral
+	 */
 	public RewardsService(GpsUtil gpsUtil, RewardCentral rewardCentral) {
-		this.gpsUtil = gpsUtil;
-		this.rewardsCentral = rewardCentral;
+		this(new RewardPointsCache(rewardCentral), new AttractionCatalog(gpsUtil), new TourGuideExecutors(ExecutionMode.fromSystemProperty()), true);
+	}
+
+	/**
+	 * crée un service sur des executors partagés, arrêtés par leur propriétaire (le bean TourGuideExecutors)
+	 * @param rewardPointsCache
+	 * @param attractionCatalog
+	 * @param executors
+	 */
+	@Autowired
+	public RewardsService(RewardPointsCache rewardPointsCache, AttractionCatalog attractionCatalog, TourGuideExecutors executors) {
+		this(rewardPointsCache, attractionCatalog, executors, false);
+	}
+
+	private RewardsService(RewardPointsCache rewardPointsCache, AttractionCatalog attractionCatalog, TourGuideExecutors executors,
+			boolean ownsExecutors) {
+		this.rewardPointsCache = rewardPointsCache;
+		this.attractionCatalog = attractionCatalog;
+		this.executors = executors;
+		this.executor = executors.rewards();
+		this.ownsExecutors = ownsExecutors;
+	}
+
+	/**
+	 * arrête les executors si ce service les a créés (appelé par Spring à l'arrêt de l'application,
+	 * sans effet sur les executors partagés)
+	 */
+	@PreDestroy
+	public void shutdown() {
+		if (ownsExecutors) {
+			executors.shutdown();
+		}
 	}
 	
 	public void setProximityBuffer(int proximityBuffer) {
@@ -56,17 +105,33 @@ public class RewardsService {
 	/**
 	 * LA MISE EN PLACE DU CONTEXTE POUR POUVOIR CALCULER EN PARALLELE PLUSIEURS UTILISATEURS(EN CAS DE MULTIPLES APPELS EXTERNES) 
 	 * méthode qui calcule les récompenses d'un utilisateur par appel de la méthode calculateRewardCore
-	 * en lançant son éxécution en asynchrone
+	 * en lançant son éxécution en asynchrone.
+	 * Le calcul est incrémental : seuls les endroits visités depuis le dernier calcul sont évalués
 	 * @param user
 	 */
 	public void calculateRewards(User user) {
-	    CompletableFuture futur = new CompletableFuture();
-	    Set<String> rewardedAttractions = ConcurrentHashMap.newKeySet();
-	    // Initialiser avec les attractions déjà récompensées, pour éviter les doublons
-	    user.getUserRewards().forEach(r -> rewardedAttractions.add(r.attraction.attractionName)); 
-	    futur = CompletableFuture.runAsync(() -> calculateRewardsCore(user, rewardedAttractions) , executor);
-	    // le futur est stocké dans une map (IDuser, futur) pour suivre son traitement et savoir quand il a fini son traitement
-	    futurByUserId.put(user.getUserId(), futur); // stocker le futur d'un User spécifique
+		calculateRewards(user, false);
+	}
+
+	/**
+	 * recalcule les récompenses d'un utilisateur en réévaluant TOUS ses endroits visités 
+	 * (reprise après incident, changement du rayon de proximité...)
+	 * @param user
+	 */
+	public void recalculateAllRewards(User user) {
+		calculateRewards(user, true);
+	}
+
+	private void calculateRewards(User user, boolean fullRescan) {
+	    Runnable calcul = () -> TourGuideMetrics.REWARDS_CALCULATION.record(() -> calculateRewardsCore(user, fullRescan));
+	    // le futur est enregistré dans le registre des calculs en cours pour savoir quand il a fini son traitement
+	    // (User.getUserRewards attend la fin du calcul via ce registre).
+	    // Si un calcul est déjà en cours pour ce user, le nouveau calcul est enchainé derrière : le dernier futur enregistré
+	    // ne se termine donc qu'une fois tous les calculs de ce user terminés
+	    user.setRewardsCalculation(rewardsInFlight.handle(user.getUserId()));
+	    rewardsInFlight.start(user.getUserId(), futurPrecedent -> futurPrecedent == null
+	    		? CompletableFuture.runAsync(calcul, executor)
+	    		: futurPrecedent.handle((result, e) -> result).thenRunAsync(calcul, executor));
 	}
 	
 	
@@ -74,53 +139,105 @@ public class RewardsService {
 	/**
 	 * LE CALCUL 
 	 * méthode qui calcule les récompenses d'un utilisateur
-	 * pour les dernieres attractions connues 
+	 * pour les endroits visités qui n'ont pas encore été évalués (ou tous si fullRescan).
+	 * Visible dans le package pour les benchmarks JMH (src/jmh/java)
 	 * @param user
-	 * @param rewardedAttractions
+	 * @param fullRescan
 	 */
-	private void calculateRewardsCore(User user, Set<String> rewardedAttractions) {
+	void calculateRewardsCore(User user, boolean fullRescan) {
     
-		// je récupère toutes les endroits visités par l'utilisateur
-	    List<VisitedLocation> userLocations = user.getVisitedLocations();
-	    // je récupère toutes les attractions disponibles
-	    List<Attraction> attractions = gpsUtil.getAttractions();
-	    // je crée une liste concurrente pour stocker les récompenses. Plusieurs threads peuvent
-	    //utiliser cette liste en même temps
-	    ConcurrentLinkedQueue<UserReward> listeTemporaire = new ConcurrentLinkedQueue<>();
-
-	    // pour chaque endroit visité, je récupère les attractions proches.
-	    // Si l'utilisateur est proche d'une attraction, j'ajoute à la liste temporaire la récompense
-	    userLocations.parallelStream().forEach(visitedLocation -> {
-	        attractions.forEach(attraction -> {
-	            if (nearAttraction(visitedLocation, attraction)) {
-	                listeTemporaire.add(new UserReward(visitedLocation, attraction, 0));
-	            }
+		// je récupère l'historique des endroits visités par l'utilisateur
+	    VisitedLocationLog userLocations = user.getVisitedLocationLog();
+	    // j'évalue les endroits visités de la marque du dernier calcul jusqu'au dernier ajout
+	    // (numéros de séquence, les endroits retirés par la rétention sont simplement ignorés)
+	    long fin = userLocations.getNextSequence();
+	    long debut = fullRescan ? userLocations.getFirstSequence() : user.getRewardsWatermark();
+	    List<VisitedLocation> nouveauxEndroits = userLocations.entriesBetween(debut, fin);
+	    if (nouveauxEndroits.isEmpty()) {
+	    	user.advanceRewardsWatermark(fin);
+	    	return; // rien de nouveau depuis le dernier calcul
+	    }
+	    // je récupère l'index des attractions disponibles (photographie courante du catalogue)
+	    AttractionSpatialIndex index = attractionCatalog.getSnapshot().getIndex();
+	    // les récompenses de l'utilisateur, indexées par attractionId (gardées d'un calcul à l'autre)
+	    UserRewardStore rewardStore = user.getRewardStore();
+	    // je crée une map concurrente des nouvelles récompenses candidates, une par attraction pas encore récompensée.
+	    // Plusieurs threads peuvent utiliser cette map en même temps
+	    Map<UUID, UserReward> candidates = new ConcurrentHashMap<>();
+
+	    // pour chaque nouvel endroit visité, je récupère les attractions proches grâce à l'index (seulement les cases voisines,
+	    // puis test de distance avec la trigonométrie des attractions pré-calculée).
+	    // Si l'utilisateur est proche d'une attraction qu'il n'a pas encore, la récompense devient candidate
+	    nouveauxEndroits.parallelStream().forEach(visitedLocation -> {
+	        index.findWithinRange(visitedLocation.location, proximityBuffer).forEach(attraction -> {
+	        	if (!rewardStore.contains(attraction.attractionId)) {
+	        		candidates.putIfAbsent(attraction.attractionId, new UserReward(visitedLocation, attraction, 0));
+	        	}
 	        });
 	    });
-	    // pour chaque récompense je vérifie que l'utilisateur ne la possède pas déjà
-	    // si l'attraction n'est pas déjà présente, je calcule les points et ajoute ces points et la récompense dans le User
-	    listeTemporaire.parallelStream().forEach(userReward -> {
-	        if (rewardedAttractions.add(userReward.attraction.attractionName)) { // vrai si l'attraction n'était pas déjà présente
-	            userReward.setRewardPoints(getRewardPoints(userReward.getAttraction(), user));
-	            user.addUserReward(userReward);
+	    // pour chaque candidate je calcule les points et ajoute la récompense dans le User (ajout atomique : jamais de doublon)
+	    candidates.values().parallelStream().forEach(userReward -> {
+	        userReward.setRewardPoints(getRewardPoints(userReward.getAttraction(), user));
+	        if (user.addUserReward(userReward)) {
+	            rewardsGranted.increment();
 	        }
 	    });
+	    // la marque n'avance qu'une fois tous les endroits évalués : si RewardCentral échoue (exception ci-dessus),
+	    // ces endroits seront réévalués au prochain calcul (les récompenses déjà ajoutées ne sont pas dupliquées)
+	    user.advanceRewardsWatermark(fin);
 	}
 	/**
-	 *Permet de savoir si le calcul de User.getUserReward est en cours ou non. 
-	 * @param userId
+	 * retourne le catalogue des attractions utilisé par le service
+	 * @return
 	 */
-	public static void attendLaFinDuCalculReward(UUID userId) {
-		if(futurByUserId.containsKey(userId)) {// on cherche ce user dans la map
-			try {
-				futurByUserId.get(userId).get();
-				// si on le trouve on attend que le calcul soit fini
-			} catch (InterruptedException | ExecutionException e) {
-				logger.debug("attendrefinCalculReward", e.toString());
-				e.printStackTrace();
-			}
-		}
-		// si on le trouve pas aucun calcul en cours, on n'attend pas
+	public AttractionCatalog getAttractionCatalog() {
+		return attractionCatalog;
+	}
+
+	/**
+	 * retourne VRAI si un calcul de récompenses est en cours pour l'utilisateur (appel non bloquant)
+	 * @param user
+	 * @return
+	 */
+	public boolean isCalculatingRewards(User user) {
+		return rewardsInFlight.isPending(user.getUserId());
+	}
+
+	/**
+	 * attend la fin du calcul des récompenses de l'utilisateur, au plus "timeout"
+	 * @param user
+	 * @param timeout
+	 * @param unit
+	 * @return VRAI si aucun calcul n'est plus en cours, FAUX si le délai est dépassé
+	 */
+	public boolean awaitRewards(User user, long timeout, TimeUnit unit) {
+		return rewardsInFlight.await(user.getUserId(), timeout, unit);
+	}
+
+	/**
+	 * retourne un futur qui se termine quand le calcul des récompenses en cours pour l'utilisateur est fini
+	 * (déjà terminé si aucun calcul n'est en cours). Ne bloque pas le thread appelant
+	 * @param user
+	 * @return
+	 */
+	public CompletableFuture<Void> whenRewardsCalculated(User user) {
+		return rewardsInFlight.whenDone(user.getUserId());
+	}
+
+	/**
+	 * nombre total de récompenses accordées par ce service
+	 * @return
+	 */
+	public long getRewardsGrantedCount() {
+		return rewardsGranted.sum();
+	}
+
+	/**
+	 * nombre d'utilisateurs dont le calcul des récompenses est en cours
+	 * @return
+	 */
+	public int getRewardsInFlightCount() {
+		return rewardsInFlight.size();
 	}
 
 	/**
@@ -134,41 +251,46 @@ public class RewardsService {
 	}
 	/**
 	 * retourne VRAI si la distance entre la position de l'utilisateur et l'attraction est a moins de 10miles
+	 * (calcul de référence avec getDistance, le calcul des récompenses passe par l'index des attractions)
 	 * @param visitedLocation
 	 * @param attraction
 	 * @return
 	 */
-	private boolean nearAttraction(VisitedLocation visitedLocation, Attraction attraction) {
+	public boolean nearAttraction(VisitedLocation visitedLocation, Attraction attraction) {
 		return RewardsService.getDistance(attraction, visitedLocation.location) > proximityBuffer ? false : true;
 	}
 	/**
-	 * obtenir le nombre de point en fonction de la récompense
+	 * obtenir le nombre de point en fonction de la récompense (via le cache devant RewardCentral)
 	 * @param attraction
 	 * @param user
 	 * @return
 	 */
-	private int getRewardPoints(Attraction attraction, User user) {
-		int result = rewardsCentral.getAttractionRewardPoints(attraction.attractionId, user.getUserId());
+	public int getRewardPoints(Attraction attraction, User user) {
+		int result = rewardPointsCache.getAttractionRewardPoints(attraction.attractionId, user.getUserId());
 		return result;
 	}
+
+	public RewardPointsCache getRewardPointsCache() {
+		return rewardPointsCache;
+	}
+
+	public TourGuideExecutors getExecutors() {
+		return executors;
+	}
+
+	public ExecutionMode getExecutionMode() {
+		return executors.getMode();
+	}
 	/**
 	 * calcule la distance entre deux localisations. 
+	 * C'est le calcul de référence (AttractionDistanceKernel.referenceDistance) : les calculs en masse passent par AttractionDistanceKernel,
+	 * qui s'en sert pour décider au bord du rayon
 	 * @param loc1
 	 * @param loc2
 	 * @return
 	 */
 	public static double getDistance(Location loc1, Location loc2) {
-        double lat1 = Math.toRadians(loc1.latitude);
-        double lon1 = Math.toRadians(loc1.longitude);
-        double lat2 = Math.toRadians(loc2.latitude);
-        double lon2 = Math.toRadians(loc2.longitude);
-
-        double angle = Math.acos(Math.sin(lat1) * Math.sin(lat2)
-                               + Math.cos(lat1) * Math.cos(lat2) * Math.cos(lon1 - lon2));
-
-        double nauticalMiles = 60 * Math.toDegrees(angle);
-        double statuteMiles = STATUTE_MILES_PER_NAUTICAL_MILE * nauticalMiles;
-        return statuteMiles;
+		return AttractionDistanceKernel.referenceDistance(loc1.latitude, loc1.longitude, loc2.latitude, loc2.longitude);
 	}
 
 }
@@ -0,0 +1,219 @@
+package com.openclassrooms.tourguide.service;
+
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * cache à durée de vie devant un appel lent (RewardCentral, TripPricer), commun à RewardPointsCache et TripDealCache :
+ * - un seul thread appelle le chargeur pour une clé absente ou expirée, les autres attendent son résultat.
+ *   L'entrée est toujours terminée, même si le chargeur lève une Error, et les erreurs ne sont pas gardées en cache ;
+ * - si un executor de mise à jour est fourni, une entrée plus vieille que "refreshAfter" (mais pas encore expirée)
+ *   est servie telle quelle pendant qu'une seule mise à jour est lancée en tâche de fond (stale-while-revalidate) ;
+ * - au delà de la taille maximum, on retire d'abord les entrées expirées, puis les entrées chargées les plus anciennes
+ *   jusqu'à redescendre à 90% de la taille maximum (un seul thread fait le ménage)
+ * @param <K> clé du cache
+ * @param <V> valeur retournée par le chargeur
+ */
+final class SingleFlightCache<K, V> {
+	private static Logger logger = LoggerFactory.getLogger(SingleFlightCache.class);
+
+	private final String name;
+	private final Function<K, V> loader;
+	// null : pas de mise à jour en tâche de fond
+	private final Executor refreshExecutor;
+	private final int maxSize;
+	private volatile long ttlMillis;
+	private volatile long refreshAfterMillis;
+	private final Map<K, Entry<V>> entries = new ConcurrentHashMap<>();
+	private final AtomicBoolean evictionInProgress = new AtomicBoolean();
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder inFlightJoins = new LongAdder();
+	private final LongAdder staleHits = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	SingleFlightCache(String name, Function<K, V> loader, long ttlMillis, int maxSize, Executor refreshExecutor) {
+		this.name = name;
+		this.loader = loader;
+		this.ttlMillis = ttlMillis;
+		this.refreshAfterMillis = ttlMillis;
+		this.maxSize = maxSize;
+		this.refreshExecutor = refreshExecutor;
+	}
+
+	/**
+	 * change la durée de vie des entrées et l'âge à partir duquel elles sont mises à jour en tâche de fond
+	 * (refreshAfter >= ttl : pas de mise à jour en tâche de fond)
+	 * @param ttlMillis
+	 * @param refreshAfterMillis
+	 */
+	void setTtl(long ttlMillis, long refreshAfterMillis) {
+		this.ttlMillis = ttlMillis;
+		this.refreshAfterMillis = refreshAfterMillis;
+	}
+
+	/**
+	 * retourne la valeur de la clé, depuis le cache si possible
+	 * @param key
+	 * @return
+	 */
+	V get(K key) {
+		long now = System.currentTimeMillis();
+		Entry<V> entry = entries.get(key);
+		if (entry != null && !entry.isOlderThan(now, ttlMillis)) {
+			if (refreshExecutor != null && entry.isOlderThan(now, refreshAfterMillis)) {
+				staleHits.increment();
+				refreshInBackground(key, entry);
+			}
+			return join(entry, entry.value.isDone() ? hits : inFlightJoins);
+		}
+		// absent ou expiré : je tente de devenir le thread qui appelle le chargeur pour cette clé
+		Entry<V> created = new Entry<>();
+		Entry<V> current = entries.compute(key, (k, existing) -> existing != null && !existing.isOlderThan(now, ttlMillis) ? existing : created);
+		if (current != created) {
+			// un autre thread a déjà lancé l'appel (ou vient de le terminer) : j'attends son résultat
+			return join(current, current.value.isDone() ? hits : inFlightJoins);
+		}
+		misses.increment();
+		try {
+			V value = loader.apply(key);
+			created.complete(value);
+			return value;
+		} catch (Throwable e) {
+			// on ne garde pas les erreurs en cache, et l'entrée est toujours terminée (même sur une Error) :
+			// sinon les appelants qui attendent cette clé resteraient bloqués
+			entries.remove(key, created);
+			created.value.completeExceptionally(e);
+			throw e;
+		} finally {
+			evictIfNeeded();
+		}
+	}
+
+	long getHitCount() {
+		return hits.sum();
+	}
+
+	long getMissCount() {
+		return misses.sum();
+	}
+
+	long getInFlightJoinCount() {
+		return inFlightJoins.sum();
+	}
+
+	long getStaleHitCount() {
+		return staleHits.sum();
+	}
+
+	long getEvictionCount() {
+		return evictions.sum();
+	}
+
+	int size() {
+		return entries.size();
+	}
+
+	void clear() {
+		entries.clear();
+	}
+
+	/**
+	 * lance une seule mise à jour de l'entrée en tâche de fond ; l'entrée est remplacée quand la mise à jour réussit.
+	 * Si l'executor refuse la mise à jour ou si elle échoue, l'ancienne valeur reste servie jusqu'à son expiration
+	 * et une autre mise à jour pourra être tentée
+	 */
+	private void refreshInBackground(K key, Entry<V> stale) {
+		if (!stale.refreshing.compareAndSet(false, true)) {
+			return; // mise à jour déjà lancée
+		}
+		try {
+			refreshExecutor.execute(() -> {
+				try {
+					Entry<V> refreshed = new Entry<>();
+					refreshed.complete(loader.apply(key));
+					entries.replace(key, stale, refreshed);
+				} catch (RuntimeException e) {
+					logger.debug(name + " refresh failed for " + key, e);
+				} finally {
+					stale.refreshing.set(false);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			stale.refreshing.set(false);
+		}
+	}
+
+	private static <V> V join(Entry<V> entry, LongAdder counter) {
+		counter.increment();
+		try {
+			return entry.value.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			if (e.getCause() instanceof Error) {
+				throw (Error) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	private void evictIfNeeded() {
+		if (entries.size() <= maxSize || !evictionInProgress.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			long now = System.currentTimeMillis();
+			entries.values().removeIf(entry -> {
+				boolean expired = entry.isOlderThan(now, ttlMillis);
+				if (expired) {
+					evictions.increment();
+				}
+				return expired;
+			});
+			int excess = entries.size() - (int) (maxSize * 0.9);
+			if (excess > 0) {
+				entries.entrySet().stream()
+						.filter(e -> e.getValue().value.isDone())
+						.sorted(Comparator.comparingLong(e -> e.getValue().loadedAt))
+						.limit(excess)
+						.toList()
+						.forEach(e -> {
+							if (entries.remove(e.getKey(), e.getValue())) {
+								evictions.increment();
+							}
+						});
+			}
+		} finally {
+			evictionInProgress.set(false);
+		}
+	}
+
+	private static final class Entry<V> {
+		private final CompletableFuture<V> value = new CompletableFuture<>();
+		private final AtomicBoolean refreshing = new AtomicBoolean();
+		private volatile long loadedAt;
+
+		private void complete(V loaded) {
+			loadedAt = System.currentTimeMillis();
+			value.complete(loaded);
+		}
+
+		// une entrée en cours de chargement n'est jamais trop vieille (ni expirée, ni à mettre à jour)
+		private boolean isOlderThan(long now, long ageMillis) {
+			return value.isDone() && now - loadedAt > ageMillis;
+		}
+	}
+}
@@ -1,41 +1,53 @@
 package com.openclassrooms.tourguide.service;
 
-import java.time.LocalDateTime;
-import java.time.ZoneOffset;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.ArrayList;
-import java.util.Comparator;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.Random;
+import java.util.SplittableRandom;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
-import java.util.stream.IntStream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import jakarta.annotation.PreDestroy;
+
+import com.openclassrooms.tourguide.attraction.AttractionCatalog;
+import com.openclassrooms.tourguide.concurrent.ExternalCallLimiter;
+import com.openclassrooms.tourguide.concurrent.InFlightRegistry;
 import com.openclassrooms.tourguide.dto.AttractionInformationDTO;
+import com.openclassrooms.tourguide.dto.JsonWriters;
 import com.openclassrooms.tourguide.dto.NearByAttractionDTO;
 import com.openclassrooms.tourguide.helper.InternalTestHelper;
+import com.openclassrooms.tourguide.helper.InternalUserGenerator;
+import com.openclassrooms.tourguide.metrics.TourGuideMetrics;
 import com.openclassrooms.tourguide.tracker.Tracker;
 import com.openclassrooms.tourguide.user.User;
+import com.openclassrooms.tourguide.user.UserPositionStore;
+import com.openclassrooms.tourguide.user.UserRegistry;
 import com.openclassrooms.tourguide.user.UserReward;
-import com.openclassrooms.tourguide.utils.FuturUtils;
+import com.openclassrooms.tourguide.user.UserSnapshotFile;
+import com.openclassrooms.tourguide.user.VisitedLocationLog;
 
 import gpsUtil.GpsUtil;
 import gpsUtil.location.Attraction;
 import gpsUtil.location.Location;
 import gpsUtil.location.VisitedLocation;
-import rewardCentral.RewardCentral;
 import tripPricer.Provider;
 import tripPricer.TripPricer;
 
@@ -44,28 +56,75 @@ public class TourGuideService {
 	private static Logger logger = LoggerFactory.getLogger(TourGuideService.class);
 	private final GpsUtil gpsUtil;
 	private final RewardsService rewardsService;
+	private final AttractionCatalog attractionCatalog;
 	private final TripPricer tripPricer = new TripPricer();
+	// offres de voyage en cache devant TripPricer
+	private final TripDealCache tripDealCache;
 	public final Tracker tracker;
 	boolean testMode = true;
 	private final static Long TIME21 = TimeUnit.MINUTES.toMillis(21L); // pour demander le rafraichissement au bout de 21 minutes
-	private final ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors()*50);
-	private final Map<String, User> internalUserMap = new HashMap<>();
-	
-	private static Map<UUID, FuturUtils> futurByUserId = new HashMap<>();
+	public final static int NB_NEARBY_ATTRACTIONS = 5; // nombre d'attractions proches retournées par défaut
+	// bulkhead du suivi des positions, dans le sous-système d'exécution partagé avec RewardsService
+	private final Executor executor;
+	// borne le nombre d'appels simultanés à gpsUtil (réglée avec les executors)
+	private final ExternalCallLimiter gpsUtilLimiter;
+	// registre concurrent (par nom et par identifiant) : les utilisateurs de test peuvent être générés en parallèle,
+	// et en tâche de fond pendant que le tracker et les requêtes les parcourent
+	private final UserRegistry userRegistry = new UserRegistry();
+	// mises à jour de position en cours, par utilisateur (une entrée disparait quand la mise à jour se termine)
+	private final InFlightRegistry<UUID> locationsInFlight = new InFlightRegistry<>("location");
+	// dernière position de chaque utilisateur en colonnes, pour les recherches sur tous les utilisateurs
+	private final UserPositionStore userPositionStore = new UserPositionStore();
+	// photographie des utilisateurs relue au démarrage et écrite à l'arrêt (null : pas de photographie)
+	private final Path usersSnapshotPath;
+	// terminé quand tous les utilisateurs de test sont générés
+	private final CompletableFuture<Void> internalUsersReady;
+	// rétention de l'historique des endroits visités, appliquée à chaque utilisateur du registre
+	private volatile VisitedLocationLog.Retention historyRetention = VisitedLocationLog.DEFAULT_RETENTION;
+	// sérialisation Json des DTO : celle de Spring quand le service est un bean (cf setJsonWriters)
+	private volatile JsonWriters jsonWriters = new JsonWriters(new ObjectMapper());
 	public TourGuideService(GpsUtil gpsUtil, RewardsService rewardsService) {
+		this(gpsUtil, rewardsService, null);
+	}
+
+	public TourGuideService(GpsUtil gpsUtil, RewardsService rewardsService, String usersSnapshotPath) {
+		this(gpsUtil, rewardsService, usersSnapshotPath, null, false);
+	}
+
+	/**
+	 * @param gpsUtil
+	 * @param rewardsService
+	 * @param usersSnapshotPath
+	 * @param generationSeed graine des utilisateurs de test (null : graine aléatoire, écrite dans les logs)
+	 * @param backgroundGeneration VRAI pour générer les utilisateurs de test en tâche de fond
+	 */
+	@Autowired
+	public TourGuideService(GpsUtil gpsUtil, RewardsService rewardsService, @Value("${tourguide.users.snapshot-path:}") String usersSnapshotPath,
+			@Value("${tourguide.users.generation.seed:#{null}}") Long generationSeed,
+			@Value("${tourguide.users.generation.background:false}") boolean backgroundGeneration) {
 		this.gpsUtil = gpsUtil;
 		this.rewardsService = rewardsService;
+		this.attractionCatalog = rewardsService.getAttractionCatalog();
+		this.executor = rewardsService.getExecutors().tracking();
+		this.gpsUtilLimiter = rewardsService.getExecutors().gpsUtilLimiter();
+		// les mises à jour des offres en tâche de fond ont leur propre bulkhead : dans celui du suivi, une file pleine
+		// ferait attendre (BLOCK) ou exécuter (CALLER_RUNS) la mise à jour par le thread de la requête
+		this.tripDealCache = new TripDealCache(tripPricer, tripPricerApiKey, rewardsService.getExecutors());
+		this.usersSnapshotPath = (usersSnapshotPath == null || usersSnapshotPath.isBlank()) ? null : Path.of(usersSnapshotPath);
 		
 		Locale.setDefault(Locale.US);
 
-		if (testMode) {
+		// s'il existe une photographie des utilisateurs, elle remplace la génération des utilisateurs de test
+		CompletableFuture<Void> usersReady = CompletableFuture.completedFuture(null);
+		if (this.usersSnapshotPath != null && Files.exists(this.usersSnapshotPath) && restoreUsersSnapshotQuietly(this.usersSnapshotPath)) {
+			logger.info("Users restored from " + this.usersSnapshotPath);
+		} else if (testMode) {
 			logger.info("TestMode enabled");
 			logger.debug("Initializing users");
-			initializeInternalUsers();
-			logger.debug("Finished initializing users");
+			usersReady = initializeInternalUsers(generationSeed != null ? generationSeed : new SplittableRandom().nextLong(), backgroundGeneration);
 		}
+		this.internalUsersReady = usersReady;
 		tracker = new Tracker(this);
-		addShutDownHook();
 	}
 	/**
 	 * retourne la liste des récompenses de l'utilisateur transmis en paramètre 
@@ -76,38 +135,168 @@ public class TourGuideService {
 		return user.getUserRewards();
 	}
 
+	/**
+	 * retourne les récompenses de l'utilisateur sans bloquer le thread appelant :
+	 * le futur se termine quand le calcul des récompenses en cours est fini
+	 * @param user
+	 * @return
+	 */
+	public CompletableFuture<List<UserReward>> getUserRewardsFuture(User user) {
+		return rewardsService.whenRewardsCalculated(user).thenApply(v -> user.getUserRewardsWithoutWaiting());
+	}
+
 	/**
 	 * retourne la position de l'utilisateur 
 	 * @param user
 	 * @return
 	 */
 	public VisitedLocation getUserLocation(User user) {
-		VisitedLocation visitedLocation = (user.getVisitedLocations().size() > 0) ? user.getLastVisitedLocation()
+		VisitedLocation visitedLocation = (user.getLastVisitedLocation() != null) ? user.getLastVisitedLocation()
 				: trackUserLocation(user);
 		return visitedLocation;
 	}
+
+	/**
+	 * retourne la position de l'utilisateur sans bloquer le thread appelant
+	 * (futur déjà terminé si l'utilisateur a déjà une position)
+	 * @param user
+	 * @return
+	 */
+	public CompletableFuture<VisitedLocation> getUserLocationFuture(User user) {
+		return (user.getLastVisitedLocation() != null) ? CompletableFuture.completedFuture(user.getLastVisitedLocation())
+				: trackUserLocationFuture(user);
+	}
 	/**
 	 * retourne le User a partir de son Username
 	 * @param userName
 	 * @return
 	 */
 	public User getUser(String userName) {
-		return internalUserMap.get(userName);
+		return userRegistry.getByUserName(userName);
+	}
+	/**
+	 * retourne le User a partir de son identifiant
+	 * @param userId
+	 * @return
+	 */
+	public User getUserById(UUID userId) {
+		return userRegistry.getByUserId(userId);
 	}
 	/**
-	 * retourne une liste de tous les Users
+	 * retourne une liste (copie) de tous les Users.
+	 * Pour parcourir les utilisateurs sans copie, utiliser getUserRegistry()
 	 * @return
 	 */
 	public List<User> getAllUsers() {
-		return internalUserMap.values().stream().collect(Collectors.toList());
+		return new ArrayList<>(userRegistry.values());
+	}
+
+	public UserRegistry getUserRegistry() {
+		return userRegistry;
 	}
 	/**
 	 * ajoute le User transmis en paramètre aux données internes de la classe 
 	 * @param user
 	 */
 	public void addUser(User user) {
-		if (!internalUserMap.containsKey(user.getUserName())) {
-			internalUserMap.put(user.getUserName(), user);
+		if (userRegistry.addIfAbsent(user)) {
+			registered(user);
+		}
+	}
+
+	/**
+	 * compte les utilisateurs dont la dernière position connue est à moins de rangeMiles de la position donnée
+	 * (par exemple le nombre d'utilisateurs proches d'une attraction)
+	 * @param location
+	 * @param rangeMiles
+	 * @return
+	 */
+	public int countUsersNear(Location location, double rangeMiles) {
+		return userPositionStore.countWithin(location, rangeMiles);
+	}
+
+	/**
+	 * retourne un futur terminé quand tous les utilisateurs de test sont générés
+	 * (déjà terminé si la génération n'est pas faite en tâche de fond)
+	 * @return
+	 */
+	public CompletableFuture<Void> getInternalUsersReady() {
+		return internalUsersReady;
+	}
+
+	public UserPositionStore getUserPositionStore() {
+		return userPositionStore;
+	}
+
+	/**
+	 * écrit la photographie de tous les utilisateurs dans le fichier et retourne le nombre d'utilisateurs écrits
+	 * @param path
+	 * @return
+	 */
+	public int saveUsersSnapshot(Path path) {
+		int nbUsers;
+		try {
+			nbUsers = UserSnapshotFile.write(path, userRegistry.values());
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		logger.debug("Saved " + nbUsers + " users to " + path);
+		return nbUsers;
+	}
+
+	/**
+	 * relit la photographie des utilisateurs (les utilisateurs de même nom sont remplacés)
+	 * et retourne le nombre d'utilisateurs relus
+	 * @param path
+	 * @return
+	 */
+	public int restoreUsersSnapshot(Path path) {
+		Map<String, Attraction> attractionsByName = attractionCatalog.getSnapshot().getAttractions().stream()
+				.collect(Collectors.toMap(a -> a.attractionName, a -> a, (a, b) -> a));
+		List<User> users;
+		try {
+			users = UserSnapshotFile.read(path, attractionsByName::get);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		users.forEach(user -> {
+			User previous = userRegistry.put(user);
+			if (previous != null && !previous.getUserId().equals(user.getUserId())) {
+				// l'utilisateur remplacé ne doit plus être vu par les recherches de position
+				userPositionStore.remove(previous.getUserId());
+			}
+			registered(user);
+		});
+		logger.debug("Restored " + users.size() + " users from " + path);
+		return users.size();
+	}
+
+	private boolean restoreUsersSnapshotQuietly(Path path) {
+		try {
+			restoreUsersSnapshot(path);
+			return true;
+		} catch (RuntimeException e) {
+			logger.warn("Unable to restore users from " + path + ", generating them instead", e);
+			userRegistry.clear();
+			userPositionStore.clear();
+			return false;
+		}
+	}
+
+	/**
+	 * applique la configuration du service à un utilisateur qui vient d'entrer dans le registre
+	 * (après l'ajout : un changement de rétention en parallèle le voit dans le registre ou est lu ici)
+	 * @param user
+	 */
+	private void registered(User user) {
+		user.getVisitedLocationLog().setRetention(historyRetention);
+		recordLatestPosition(user);
+	}
+
+	private void recordLatestPosition(User user) {
+		VisitedLocation lastVisitedLocation = user.getLastVisitedLocation();
+		if (lastVisitedLocation != null) {
+			userPositionStore.update(user.getUserId(), lastVisitedLocation);
 		}
 	}
 
@@ -117,13 +306,18 @@ public class TourGuideService {
 	 * @return
 	 */
 	public List<Provider> getTripDeals(User user) {
-		int cumulatativeRewardPoints = user.getUserRewards().stream().mapToInt(i -> i.getRewardPoints()).sum();
-		List<Provider> providers = tripPricer.getPrice(tripPricerApiKey, user.getUserId(),
-				user.getUserPreferences().getNumberOfAdults(), user.getUserPreferences().getNumberOfChildren(),
-				user.getUserPreferences().getTripDuration(), cumulatativeRewardPoints);
+		// j'attends la fin du calcul des récompenses en cours, puis je lis la somme des points tenue à jour par le User
+		rewardsService.whenRewardsCalculated(user).join();
+		int cumulatativeRewardPoints = (int) user.getRewardStore().getTotalRewardPoints();
+		// même utilisateur, mêmes préférences et mêmes points : les offres viennent du cache
+		List<Provider> providers = tripDealCache.getTripDeals(user.getUserId(), user.getUserPreferences(), cumulatativeRewardPoints);
 		user.setTripDeals(providers);
 		return providers;
 	}
+
+	public TripDealCache getTripDealCache() {
+		return tripDealCache;
+	}
 	
 
 	
@@ -133,8 +327,10 @@ public class TourGuideService {
 	 * @param user
 	 */
 	private void trackUserLocationCore(User user) {
-        VisitedLocation visitedLocation = gpsUtil.getUserLocation(user.getUserId());
+        VisitedLocation visitedLocation = gpsUtilLimiter.call(() -> TourGuideMetrics.GPS_UTIL_LATENCY.record(() -> gpsUtil.getUserLocation(user.getUserId())));
         user.addToVisitedLocations(visitedLocation);
+        user.setLatestLocationTimestamp(visitedLocation.timeVisited);
+        userPositionStore.update(user.getUserId(), visitedLocation);
         rewardsService.calculateRewards(user);
 	}
 	/**
@@ -142,9 +338,9 @@ public class TourGuideService {
 	 * @param user
 	 */
 	public void getUserLocationAsync(User user) {
-		CompletableFuture futur = CompletableFuture.runAsync(() -> trackUserLocationCore(user), executor);
-		FuturUtils futurUtils = new FuturUtils(futur);
-		futurByUserId.put(user.getUserId(), futurUtils); // je stock ici l'ID de mon user + l'heure à laquel le traitement est effectué ainsi que le traitement 
+		// j'enregistre le traitement dans le registre des mises à jour en cours, il en est retiré à la fin du traitement.
+		// Si une mise à jour est déjà en cours pour ce user, je la rejoins au lieu d'en lancer une seconde
+		locationsInFlight.joinOrStart(user.getUserId(), () -> CompletableFuture.runAsync(() -> trackUserLocationCore(user), executor));
 	}
 	
 	/**
@@ -157,26 +353,81 @@ public class TourGuideService {
 		attendLaFinDuCalculGetUserLocation(user);
         return user.getLastVisitedLocation();
 }
+	/**
+	 * version non bloquante de trackUserLocation : le futur retourne le dernier endroit visité
+	 * une fois la mise à jour en cours (ou relancée) terminée
+	 * @param user
+	 * @return
+	 */
+	public CompletableFuture<VisitedLocation> trackUserLocationFuture(User user) {
+		lancerLeCalculGetUserLocationSiNecessaire(user);
+		return locationsInFlight.whenDone(user.getUserId()).thenApply(v -> user.getLastVisitedLocation());
+	}
+
 	/**
 	 * permet de savoir si le calcul de GetUserLocation est en cours ou non. 
-	 * La méthode relance le calcul manuellement dans le cas ou il n'y a pas de traitement pour ce user ou que celui ci date de plus de 21 minutes
+	 * La méthode relance le calcul manuellement dans le cas ou il n'y a pas de traitement en cours pour ce user
+	 * et que sa dernière position date de plus de 21 minutes (ou qu'il n'a jamais été suivi)
 	 * @param user
 	 */
 	private void attendLaFinDuCalculGetUserLocation(User user) {
-		FuturUtils futurUtils = futurByUserId.get(user.getUserId()); // je récupère le futur et le temps d'actualisation lié au user 
-		if(!(futurUtils != null && (Long) futurUtils.getTimeDebut()+TIME21 > System.currentTimeMillis())) {
-			// si je n'ai pas de traitement pour ce user OU que le traitement a été lancé il y a plus de 21 minutes
-			// je n'ai pas encore les informations, ou elles sont expirées, je lance mon calcul manuellement 
-			getUserLocationAsync(user);
-		}
-		// puis je récupère le futur terminé
-		try {
-			futurByUserId.get(user.getUserId()).getFutur().get();
-		} catch (InterruptedException | ExecutionException e) {
-			logger.debug("attendrefinGetUserLocation", e.toString());
-			e.printStackTrace();
-		}
-	
+		lancerLeCalculGetUserLocationSiNecessaire(user);
+		// puis j'attends la fin du traitement en cours, s'il y en a un
+		locationsInFlight.await(user.getUserId());
+	}
+
+	/**
+	 * relance la mise à jour de la position s'il n'y a pas de traitement en cours pour ce user
+	 * et que sa dernière position date de plus de 21 minutes (ou qu'il n'a jamais été suivi)
+	 * @param user
+	 */
+	private void lancerLeCalculGetUserLocationSiNecessaire(User user) {
+		// décision atomique pour ce user (single-flight) : je rejoins la mise à jour en cours s'il y en a une,
+		// sinon je ne la lance que si je n'ai pas encore les informations ou qu'elles sont expirées.
+		// Une mise à jour qui vient de se terminer a déjà renseigné la date : les appelants suivants ne relancent rien
+		locationsInFlight.joinOrStart(user.getUserId(), () -> {
+			Date derniereMiseAJour = user.getLatestLocationTimestamp();
+			if (derniereMiseAJour == null || derniereMiseAJour.getTime() + TIME21 <= System.currentTimeMillis()) {
+				return CompletableFuture.runAsync(() -> trackUserLocationCore(user), executor);
+			}
+			return null;
+		});
+	}
+
+	/**
+	 * nombre de demandes de mise à jour de position qui ont rejoint une mise à jour déjà en cours
+	 * @return
+	 */
+	public long getLocationRefreshJoinCount() {
+		return locationsInFlight.getJoinCount();
+	}
+
+	/**
+	 * retourne VRAI si une mise à jour de la position de l'utilisateur est en cours (appel non bloquant)
+	 * @param user
+	 * @return
+	 */
+	public boolean isTrackingLocation(User user) {
+		return locationsInFlight.isPending(user.getUserId());
+	}
+
+	/**
+	 * attend la fin de la mise à jour de la position de l'utilisateur, au plus "timeout"
+	 * @param user
+	 * @param timeout
+	 * @param unit
+	 * @return VRAI si aucune mise à jour n'est plus en cours, FAUX si le délai est dépassé
+	 */
+	public boolean awaitLocation(User user, long timeout, TimeUnit unit) {
+		return locationsInFlight.await(user.getUserId(), timeout, unit);
+	}
+
+	/**
+	 * nombre d'utilisateurs dont la position est en cours de mise à jour
+	 * @return
+	 */
+	public int getLocationsInFlightCount() {
+		return locationsInFlight.size();
 	}
 	/**
 	 * retourne les 5 attractions les plus proche de l'utilisateur 
@@ -184,22 +435,17 @@ public class TourGuideService {
 	 * @return
 	 */
 	public List<Attraction> getNearByAttractions(VisitedLocation visitedLocation) {
-	    List<Attraction> originalList = gpsUtil.getAttractions();
-	    // Copie locale pour éviter les effets de bord liés au multi-threading
-	    ArrayList<Attraction> copieAttractions = new ArrayList<>(originalList);
-        // on crée un comparateur pour comparer les attractions et ainsi pouvoir les trier 
-	    Comparator<Attraction> distanceComparator =
-	            (a1, a2) -> Double.compare(RewardsService.getDistance(a1, visitedLocation.location), 
-	            		RewardsService.getDistance(a2, visitedLocation.location));
-	            // double pour éviter les erreurs d'arrondi
-
-	    // on remplie la liste des 5 attractions les plus proches de l'utilisateur 
-	    List<Attraction> nearbyAttractions = copieAttractions.stream()
-	    	    .sorted(distanceComparator) // on trie la liste du plus proche au plus lointain
-	    	    .limit(5) // dans la limite de 5 attractions
-	    	    .collect(Collectors.toList()); // qu'on insère dans la liste
-	   
-	    return nearbyAttractions;
+		return getNearByAttractions(visitedLocation, NB_NEARBY_ATTRACTIONS);
+	}
+	/**
+	 * retourne les nbAttractions attractions les plus proche de l'utilisateur, de la plus proche à la plus lointaine 
+	 * (recherche des k plus proches voisins dans l'index des attractions, sans trier toute la liste)
+	 * @param visitedLocation
+	 * @param nbAttractions
+	 * @return
+	 */
+	public List<Attraction> getNearByAttractions(VisitedLocation visitedLocation, int nbAttractions) {
+		return attractionCatalog.getSnapshot().getIndex().findNearest(visitedLocation.location, nbAttractions);
 	}
 	/**
 	 * retourne les 5 attractions les plus proche de l'utilisateur pour le format Json
@@ -207,27 +453,58 @@ public class TourGuideService {
 	 * @return
 	 */
 	public String getNearByAttractionsAsJson(String userName) {
-		// on créee un objet qui contiendra la position de l'utilisateur et les attractions proches de lui
-    	NearByAttractionDTO nearByAttractionDTO = new NearByAttractionDTO();
-    	// on créee une variable qui permettra de récupérer le nombre de points de récompense par attraction
-    	RewardCentral rewardCentral = new RewardCentral();
+		return getNearByAttractionsAsJson(userName, NB_NEARBY_ATTRACTIONS);
+	}
+	/**
+	 * retourne les nbAttractions attractions les plus proche de l'utilisateur pour le format Json
+	 * @param userName
+	 * @param nbAttractions
+	 * @return
+	 */
+	public String getNearByAttractionsAsJson(String userName, int nbAttractions) {
     	// on récupère le User grace à son Username
     	User user = getUser(userName);
     	// on récupère la position actuelle de l'utilisateur
     	VisitedLocation visitedLocation = this.getUserLocation(user);
+    	// on transcrit l'objet en Json avec l'ObjectWriter partagé
+    	return jsonWriters.toJson(getNearByAttractionsDTO(user, visitedLocation, nbAttractions));
+	}
+	/**
+	 * version non bloquante de getNearByAttractionsAsJson : la position est obtenue sans bloquer,
+	 * puis le DTO (qui demande les points de récompense, appel lent) est construit dans le bulkhead des récompenses.
+	 * Le DTO est retourné tel quel pour être écrit directement dans la réponse (cf JsonWriters)
+	 * @param userName
+	 * @param nbAttractions
+	 * @return
+	 */
+	public CompletableFuture<NearByAttractionDTO> getNearByAttractionsFuture(String userName, int nbAttractions) {
+		User user = getUser(userName);
+		return getUserLocationFuture(user).thenApplyAsync(visitedLocation -> getNearByAttractionsDTO(user, visitedLocation, nbAttractions),
+				rewardsService.getExecutors().rewards());
+	}
+	/**
+	 * construit le DTO des nbAttractions attractions les plus proches de la position de l'utilisateur
+	 * @param user
+	 * @param visitedLocation
+	 * @param nbAttractions
+	 * @return
+	 */
+	private NearByAttractionDTO getNearByAttractionsDTO(User user, VisitedLocation visitedLocation, int nbAttractions) {
+		// on créee un objet qui contiendra la position de l'utilisateur et les attractions proches de lui
+    	NearByAttractionDTO nearByAttractionDTO = new NearByAttractionDTO();
     	// on insère la position de l'utilisateur dans le nearByAttractionDTO
     	nearByAttractionDTO.setUserLocation(visitedLocation.location);
     	// on créee une liste vide d'attractionInformationDTO pour la remplir avec les attractions proches de l'utilisateur 
     	List<AttractionInformationDTO> listAttractionInformationDTO = new ArrayList<>();
     	// Pour chaque attraction retournée par getnearByAttraction
-    	// (getNearByAttraction nous renvoie les 5 plus proche de l'utilisateur) 
-    	for (Attraction attraction : this.getNearByAttractions(visitedLocation)) {
+    	// (getNearByAttraction nous renvoie les nbAttractions plus proche de l'utilisateur) 
+    	for (Attraction attraction : this.getNearByAttractions(visitedLocation, nbAttractions)) {
     		// on récupère la localisation (latitude longitude) de l'attraction en cours
     		Location attractionLocation= new Location(attraction.latitude, attraction.longitude);
-    		// on récupère le nombre de points de l'attraction
-        	Integer nbPoint = rewardCentral.getAttractionRewardPoints(attraction.attractionId, user.getUserId());
+    		// on récupère le nombre de points de l'attraction (cache partagé devant RewardCentral)
+        	Integer nbPoint = rewardsService.getRewardPoints(attraction, user);
         	// on créee l'attractionInformationDTO qui contient le nom de l'attraction, sa localisation, le nb de points associé, et la position de l'utilisateur)
-    		AttractionInformationDTO attractionInformationDTO = new AttractionInformationDTO(attraction.attractionName, attractionLocation, nbPoint, user.getLastVisitedLocation().location);
+    		AttractionInformationDTO attractionInformationDTO = new AttractionInformationDTO(attraction.attractionName, attractionLocation, nbPoint, visitedLocation.location);
     		// on ajoute l'attractionInformationDTO à la liste
     		listAttractionInformationDTO.add(attractionInformationDTO);
     	}
@@ -235,17 +512,88 @@ public class TourGuideService {
     	//(comportant le nom de l'attraction, sa localisation, le nb de point, la position de l'utilisateur)
     	// dans l'objet nearByAttractionDTO
     	nearByAttractionDTO.setAttractionInformation(listAttractionInformationDTO);
-    	// on transcrit l'objet en Json grace à la méthode "toJson"
-    	return nearByAttractionDTO.toJson();
+    	return nearByAttractionDTO;
 	}
 	
 
-	private void addShutDownHook() {
-		Runtime.getRuntime().addShutdownHook(new Thread() {
-			public void run() {
-				tracker.stopTracking();
+	public RewardsService getRewardsService() {
+		return rewardsService;
+	}
+
+	public ExternalCallLimiter getGpsUtilLimiter() {
+		return gpsUtilLimiter;
+	}
+
+	/**
+	 * applique la configuration du tracker : intervalle maximum entre deux mises à jour d'un utilisateur
+	 * et débit visé (utilisateurs par seconde, 0 pour répartir les utilisateurs sur tout l'intervalle)
+	 * @param pollingIntervalMinutes
+	 * @param targetUsersPerSecond
+	 */
+	@Autowired
+	public void configureTracker(@Value("${tourguide.tracker.polling-interval-minutes:" + Tracker.DEFAULT_POLLING_INTERVAL_MINUTES + "}") long pollingIntervalMinutes,
+			@Value("${tourguide.tracker.target-users-per-second:0}") double targetUsersPerSecond) {
+		tracker.setTrackingPollingInterval(pollingIntervalMinutes, TimeUnit.MINUTES);
+		tracker.setTargetUsersPerSecond(targetUsersPerSecond);
+	}
+
+	/**
+	 * applique la configuration de la rétention de l'historique des endroits visités de chaque utilisateur
+	 * (par défaut pas de limite : les propriétés activent le retrait des endroits les plus anciens)
+	 * @param maxEntries nombre maximum d'endroits (0 : pas de limite)
+	 * @param maxAgeDays âge maximum en jours (0 : pas de limite)
+	 */
+	@Autowired
+	public void configureHistoryRetention(@Value("${tourguide.history.max-entries:0}") int maxEntries,
+			@Value("${tourguide.history.max-age-days:0}") long maxAgeDays) {
+		setHistoryRetention(new VisitedLocationLog.Retention(maxEntries, maxAgeDays > 0 ? Duration.ofDays(maxAgeDays) : null));
+	}
+
+	/**
+	 * change la rétention de l'historique des utilisateurs de ce service, déjà enregistrés ou ajoutés ensuite
+	 * @param retention
+	 */
+	public void setHistoryRetention(VisitedLocationLog.Retention retention) {
+		historyRetention = retention;
+		for (User user : userRegistry) {
+			user.getVisitedLocationLog().setRetention(retention);
+		}
+	}
+
+	public VisitedLocationLog.Retention getHistoryRetention() {
+		return historyRetention;
+	}
+
+	/**
+	 * utilise les ObjectWriter construits à partir de l'ObjectMapper de Spring
+	 * @param jsonWriters
+	 */
+	@Autowired
+	public void setJsonWriters(JsonWriters jsonWriters) {
+		this.jsonWriters = jsonWriters;
+	}
+
+	@Autowired
+	public void configureTripDealCache(@Value("${tourguide.trip-deals.cache.ttl-minutes:" + TripDealCache.DEFAULT_TTL_MINUTES + "}") long ttlMinutes,
+			@Value("${tourguide.trip-deals.cache.refresh-after-minutes:" + TripDealCache.DEFAULT_REFRESH_AFTER_MINUTES + "}") long refreshAfterMinutes) {
+		tripDealCache.setTtl(ttlMinutes, refreshAfterMinutes, TimeUnit.MINUTES);
+	}
+
+	/**
+	 * arrête le tracker de ce service (appelé par Spring à l'arrêt de l'application)
+	 * et écrit la photographie des utilisateurs si un fichier est configuré.
+	 * Les executors appartiennent au RewardsService ou au bean TourGuideExecutors, qui les arrêtent
+	 */
+	@PreDestroy
+	public void shutdown() {
+		tracker.stopTracking();
+		if (usersSnapshotPath != null) {
+			try {
+				saveUsersSnapshot(usersSnapshotPath);
+			} catch (RuntimeException e) {
+				logger.warn("Unable to save users to " + usersSnapshotPath, e);
 			}
-		});
+		}
 	}
 
 	/**********************************************************************************
@@ -258,41 +606,41 @@ public class TourGuideService {
 	// internal users are provided and stored in memory
 	
 
-	private void initializeInternalUsers() {
-		IntStream.range(0, InternalTestHelper.getInternalUserNumber()).forEach(i -> {
-			String userName = "internalUser" + i;
-			String phone = "000";
-			String email = userName + "@tourGuide.com";
-			User user = new User(UUID.randomUUID(), userName, phone, email);
-			generateUserLocationHistory(user);
-
-			internalUserMap.put(userName, user);
-		});
-		logger.debug("Created " + InternalTestHelper.getInternalUserNumber() + " internal test users.");
-	}
-
-	private void generateUserLocationHistory(User user) {
-		IntStream.range(0, 3).forEach(i -> {
-			user.addToVisitedLocations(new VisitedLocation(user.getUserId(),
-					new Location(generateRandomLatitude(), generateRandomLongitude()), getRandomTime()));
-		});
-	}
-
-	private double generateRandomLongitude() {
-		double leftLimit = -180;
-		double rightLimit = 180;
-		return leftLimit + new Random().nextDouble() * (rightLimit - leftLimit);
-	}
-
-	private double generateRandomLatitude() {
-		double leftLimit = -85.05112878;
-		double rightLimit = 85.05112878;
-		return leftLimit + new Random().nextDouble() * (rightLimit - leftLimit);
-	}
-
-	private Date getRandomTime() {
-		LocalDateTime localDateTime = LocalDateTime.now().minusDays(new Random().nextInt(30));
-		return Date.from(localDateTime.toInstant(ZoneOffset.UTC));
+	/**
+	 * génère les utilisateurs de test en parallèle, tout de suite ou en tâche de fond
+	 * (les utilisateurs sont alors visibles au fur et à mesure de leur création)
+	 * @param seed
+	 * @param background
+	 * @return un futur terminé à la fin de la génération
+	 */
+	private CompletableFuture<Void> initializeInternalUsers(long seed, boolean background) {
+		InternalUserGenerator generator = new InternalUserGenerator(seed);
+		int nbUsers = InternalTestHelper.getInternalUserNumber();
+		logger.info("Generating " + nbUsers + " internal test users with seed " + seed + (background ? " in background" : ""));
+		Runnable generation = () -> {
+			generator.generate(nbUsers, user -> {
+				userRegistry.put(user);
+				registered(user);
+			});
+			logger.debug("Created " + nbUsers + " internal test users.");
+		};
+		if (!background) {
+			generation.run();
+			return CompletableFuture.completedFuture(null);
+		}
+		CompletableFuture<Void> generated = new CompletableFuture<>();
+		Thread thread = new Thread(() -> {
+			try {
+				generation.run();
+				generated.complete(null);
+			} catch (RuntimeException e) {
+				logger.error("Internal test users generation failed", e);
+				generated.completeExceptionally(e);
+			}
+		}, "internal-users-generator");
+		thread.setDaemon(true);
+		thread.start();
+		return generated;
 	}
 
 }
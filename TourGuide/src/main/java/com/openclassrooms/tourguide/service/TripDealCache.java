@@ -0,0 +1,131 @@
+package com.openclassrooms.tourguide.service;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import com.openclassrooms.tourguide.concurrent.ExternalCallLimiter;
+import com.openclassrooms.tourguide.concurrent.TourGuideExecutors;
+import com.openclassrooms.tourguide.metrics.TourGuideMetrics;
+import com.openclassrooms.tourguide.user.UserPreferences;
+
+import tripPricer.Provider;
+import tripPricer.TripPricer;
+
+/**
+ * cache des offres de voyage devant TripPricer (appel lent), utilisé par TourGuideService.getTripDeals.
+ * La clé est (userId, préférences utilisées par TripPricer, points de récompense) : si les préférences ou les points changent,
+ * la clé change et les offres sont recalculées. Comme RewardPointsCache, un seul thread appelle TripPricer pour une clé absente,
+ * les autres attendent son résultat. En plus, une entrée plus vieille que "refreshAfter" (mais pas encore expirée)
+ * est servie telle quelle pendant qu'une seule mise à jour est lancée en tâche de fond (stale-while-revalidate) :
+ * seul le premier appel pour une clé paie la latence de TripPricer
+ */
+public class TripDealCache {
+	public static final long DEFAULT_TTL_MINUTES = 30;
+	public static final long DEFAULT_REFRESH_AFTER_MINUTES = 10;
+	public static final int DEFAULT_MAX_SIZE = 100000;
+
+	private final TripPricer tripPricer;
+	private final String apiKey;
+	// borne le nombre d'appels simultanés à TripPricer
+	private final ExternalCallLimiter tripPricerLimiter;
+	private final SingleFlightCache<Key, List<Provider>> cache;
+
+	/**
+	 * les mises à jour en tâche de fond et la limite des appels à TripPricer sont celles des executors de l'application
+	 * @param tripPricer
+	 * @param apiKey
+	 * @param executors
+	 */
+	public TripDealCache(TripPricer tripPricer, String apiKey, TourGuideExecutors executors) {
+		this(tripPricer, apiKey, executors.tripDealsRefresh(), executors.tripPricerLimiter(), DEFAULT_MAX_SIZE);
+	}
+
+	/**
+	 * @param tripPricer
+	 * @param apiKey
+	 * @param refreshExecutor executor des mises à jour en tâche de fond
+	 * @param tripPricerLimiter
+	 * @param maxSize
+	 */
+	public TripDealCache(TripPricer tripPricer, String apiKey, Executor refreshExecutor, ExternalCallLimiter tripPricerLimiter, int maxSize) {
+		this.tripPricer = tripPricer;
+		this.apiKey = apiKey;
+		this.tripPricerLimiter = tripPricerLimiter;
+		this.cache = new SingleFlightCache<>("tripDeals", this::load, TimeUnit.MINUTES.toMillis(DEFAULT_TTL_MINUTES), maxSize, refreshExecutor);
+		cache.setTtl(TimeUnit.MINUTES.toMillis(DEFAULT_TTL_MINUTES), TimeUnit.MINUTES.toMillis(DEFAULT_REFRESH_AFTER_MINUTES));
+	}
+
+	/**
+	 * change la durée de vie des entrées et l'âge à partir duquel elles sont mises à jour en tâche de fond
+	 * (refreshAfter >= ttl : pas de mise à jour en tâche de fond)
+	 * @param ttl
+	 * @param refreshAfter
+	 * @param unit
+	 */
+	public void setTtl(long ttl, long refreshAfter, TimeUnit unit) {
+		cache.setTtl(unit.toMillis(ttl), unit.toMillis(refreshAfter));
+	}
+
+	/**
+	 * retourne les offres de voyage (liste non modifiable) pour l'utilisateur, depuis le cache si possible
+	 * @param userId
+	 * @param userPreferences
+	 * @param rewardPoints
+	 * @return
+	 */
+	public List<Provider> getTripDeals(UUID userId, UserPreferences userPreferences, int rewardPoints) {
+		return cache.get(new Key(userId, userPreferences.getNumberOfAdults(), userPreferences.getNumberOfChildren(),
+				userPreferences.getTripDuration(), rewardPoints));
+	}
+
+	public ExternalCallLimiter getTripPricerLimiter() {
+		return tripPricerLimiter;
+	}
+
+	public long getHitCount() {
+		return cache.getHitCount();
+	}
+
+	public long getMissCount() {
+		return cache.getMissCount();
+	}
+
+	/**
+	 * nombre de demandes qui ont attendu un appel à TripPricer déjà en cours pour la même clé
+	 * @return
+	 */
+	public long getInFlightJoinCount() {
+		return cache.getInFlightJoinCount();
+	}
+
+	/**
+	 * nombre de demandes servies avec une entrée à mettre à jour (la mise à jour est lancée en tâche de fond)
+	 * @return
+	 */
+	public long getStaleHitCount() {
+		return cache.getStaleHitCount();
+	}
+
+	public long getEvictionCount() {
+		return cache.getEvictionCount();
+	}
+
+	public int size() {
+		return cache.size();
+	}
+
+	public void clear() {
+		cache.clear();
+	}
+
+	private List<Provider> load(Key key) {
+		return List.copyOf(tripPricerLimiter.call(() -> TourGuideMetrics.TRIP_PRICER_LATENCY.record(() -> tripPricer.getPrice(apiKey,
+				key.userId(), key.numberOfAdults(), key.numberOfChildren(), key.tripDuration(), key.rewardPoints()))));
+	}
+
+	// empreinte des préférences : seules celles transmises à TripPricer font partie de la clé
+	private record Key(UUID userId, int numberOfAdults, int numberOfChildren, int tripDuration, int rewardPoints) {
+	}
+}
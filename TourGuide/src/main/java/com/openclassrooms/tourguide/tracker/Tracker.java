@@ -1,6 +1,7 @@
 package com.openclassrooms.tourguide.tracker;
 
-import java.util.List;
+import java.util.Date;
+import java.util.Iterator;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
@@ -9,16 +10,23 @@ import org.apache.commons.lang3.time.StopWatch;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.openclassrooms.tourguide.metrics.TourGuideMetrics;
 import com.openclassrooms.tourguide.service.TourGuideService;
 import com.openclassrooms.tourguide.user.User;
+import com.openclassrooms.tourguide.user.UserRegistry;
 
 public class Tracker extends Thread {
 	private Logger logger = LoggerFactory.getLogger(Tracker.class);
-	private static final long trackingPollingInterval = TimeUnit.MINUTES.toSeconds(21); //relance le thread toutes les 16 minutes. Globalement les utilisateurs sont mis à jours toute les 16 minutes
-	//private final ExecutorService executorService = Executors.newSingleThreadExecutor();
-	private final ExecutorService executorService = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors()*50);
+	public static final long DEFAULT_POLLING_INTERVAL_MINUTES = 21; // chaque utilisateur est mis à jour au moins toutes les 21 minutes
+	// durée d'un "tick" : à chaque tick le tracker lance la mise à jour d'une tranche d'utilisateurs
+	private static final long TICK_MILLIS = TimeUnit.SECONDS.toMillis(1);
+	// le tracker n'a besoin que de son propre thread, les positions sont calculées dans le bulkhead "tracking"
+	private final ExecutorService executorService = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "tracker"));
 	private final TourGuideService tourGuideService;
-	private boolean stop = false;
+	private volatile long trackingPollingIntervalMillis = TimeUnit.MINUTES.toMillis(DEFAULT_POLLING_INTERVAL_MINUTES);
+	// nombre d'utilisateurs mis à jour par seconde (0 : juste assez pour tous les mettre à jour dans l'intervalle)
+	private volatile double targetUsersPerSecond = 0;
+	private volatile boolean stop = false;
 
 	public Tracker(TourGuideService tourGuideService) {
 		this.tourGuideService = tourGuideService;
@@ -34,31 +42,136 @@ public class Tracker extends Thread {
 		executorService.shutdownNow();
 	}
 
+	/**
+	 * change l'intervalle maximum entre deux mises à jour d'un même utilisateur (pris en compte au cycle suivant)
+	 * @param interval
+	 * @param unit
+	 */
+	public void setTrackingPollingInterval(long interval, TimeUnit unit) {
+		this.trackingPollingIntervalMillis = unit.toMillis(interval);
+	}
+
+	/**
+	 * change le débit visé en utilisateurs mis à jour par seconde (pris en compte au cycle suivant).
+	 * Il ne peut pas descendre en dessous du débit nécessaire pour mettre à jour tous les utilisateurs dans l'intervalle
+	 * @param targetUsersPerSecond
+	 */
+	public void setTargetUsersPerSecond(double targetUsersPerSecond) {
+		this.targetUsersPerSecond = targetUsersPerSecond;
+	}
+
+	/**
+	 * nombre d'utilisateurs à lancer par tick pour mettre à jour nbUsers utilisateurs dans l'intervalle,
+	 * au débit visé s'il est plus élevé
+	 * @param nbUsers
+	 * @return
+	 */
+	int getUsersPerTick(int nbUsers) {
+		long nbTicks = Math.max(1, trackingPollingIntervalMillis / TICK_MILLIS);
+		long usersPerTick = (nbUsers + nbTicks - 1) / nbTicks;
+		long targetPerTick = (long) Math.ceil(targetUsersPerSecond * TICK_MILLIS / 1000);
+		return (int) Math.max(1, Math.max(usersPerTick, targetPerTick));
+	}
+
 	@Override
 	public void run() {
-		
+
 		StopWatch stopWatch = new StopWatch();
+		long rewardsGrantedAvant = tourGuideService.getRewardsService().getRewardsGrantedCount();
 		while (true) {
 			if (Thread.currentThread().isInterrupted() || stop) {
 				logger.warn("Tracker stopping");
 				break;
 			}
 
-			List<User> users = tourGuideService.getAllUsers();
-			// TODO réinitialiser le logger des lignes ci-dessous en DEBUG plutôt que WARN
-			logger.warn("Begin Tracker. Tracking " + users.size() + " users.");
+			// parcours du registre sans copie des utilisateurs, faiblement cohérent (les utilisateurs ajoutés pendant le cycle peuvent en faire partie)
+			UserRegistry userRegistry = tourGuideService.getUserRegistry();
+			int nbUsers = userRegistry.size();
+			long cycleStart = System.currentTimeMillis();
+			long cycleEnd = cycleStart + trackingPollingIntervalMillis;
+			int usersPerTick = getUsersPerTick(nbUsers);
+			logger.debug("Begin Tracker. Tracking " + nbUsers + " users, " + usersPerTick + " users per second.");
+			// le chronomètre ne mesure que le lancement des mises à jour (suspendu pendant l'attente entre deux ticks)
 			stopWatch.start();
-			users.forEach(u -> tourGuideService.getUserLocationAsync(u));
-			stopWatch.stop();
-			logger.warn("Tracker Time Elapsed: " + TimeUnit.MILLISECONDS.toSeconds(stopWatch.getTime()) + " seconds.");
-			stopWatch.reset();
 			try {
-				logger.warn("Tracker sleeping");
-				TimeUnit.SECONDS.sleep(trackingPollingInterval);
+				// rattrapage : les utilisateurs jamais suivis ou dont la position date de plus d'un intervalle sont lancés tout de suite
+				// (au démarrage, tous les utilisateurs), le bulkhead "tracking" régule leur exécution
+				int nbOverdue = 0;
+				for (Iterator<User> users = userRegistry.iterator(); users.hasNext() && !stop;) {
+					User user = users.next();
+					if (isOverdue(user, cycleStart)) {
+						trackQuietly(user);
+						nbOverdue++;
+					}
+				}
+				logger.debug("Tracker launched " + nbOverdue + " overdue users.");
+				// les autres sont répartis sur tout l'intervalle au lieu d'être tous lancés d'un coup :
+				// à chaque tick on lance une tranche puis on attend le tick suivant
+				Iterator<User> users = userRegistry.iterator();
+				for (int tick = 1; users.hasNext() && !stop; tick++) {
+					for (int i = 0; i < usersPerTick && users.hasNext(); i++) {
+						User user = users.next();
+						if (!isUpToDateSince(user, cycleStart)) {
+							trackQuietly(user);
+						}
+					}
+					stopWatch.suspend();
+					sleepUntil(cycleStart + tick * TICK_MILLIS);
+					stopWatch.resume();
+				}
+				stopWatch.stop();
+				logger.debug("Tracker Time Elapsed: " + TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - cycleStart)
+						+ " seconds, " + TimeUnit.MILLISECONDS.toSeconds(stopWatch.getTime()) + " seconds launching updates.");
+				TourGuideMetrics.TRACKER_CYCLE_WORK.record(stopWatch.getTime(), TimeUnit.MILLISECONDS);
+				// récompenses accordées depuis le début du cycle précédent
+				long rewardsGrantedApres = tourGuideService.getRewardsService().getRewardsGrantedCount();
+				TourGuideMetrics.REWARDS_GRANTED_PER_CYCLE.record(rewardsGrantedApres - rewardsGrantedAvant);
+				rewardsGrantedAvant = rewardsGrantedApres;
+				stopWatch.reset();
+				logger.debug("Tracker sleeping");
+				sleepUntil(cycleEnd);
 			} catch (InterruptedException e) {
 				break;
 			}
 		}
 
 	}
+
+	/**
+	 * lance la mise à jour d'un utilisateur. Une erreur (bulkhead saturé en ABORT, gpsUtil...) est écrite dans les logs
+	 * et n'arrête pas le tracker : l'utilisateur sera repris au cycle suivant
+	 * @param user
+	 */
+	private void trackQuietly(User user) {
+		try {
+			tourGuideService.getUserLocationAsync(user);
+		} catch (RuntimeException e) {
+			logger.error("Unable to track user " + user.getUserName(), e);
+		}
+	}
+
+	/**
+	 * VRAI si l'utilisateur n'a jamais été suivi, ou si sa position date de plus d'un intervalle au début du cycle
+	 * et qu'aucune mise à jour n'est en cours
+	 */
+	private boolean isOverdue(User user, long cycleStart) {
+		Date latest = user.getLatestLocationTimestamp();
+		return (latest == null || latest.getTime() <= cycleStart - trackingPollingIntervalMillis) && !tourGuideService.isTrackingLocation(user);
+	}
+
+	/**
+	 * VRAI si la position de l'utilisateur est en cours de mise à jour ou a été mise à jour depuis le début du cycle
+	 * (par le rattrapage ou par une demande directe) : inutile de la relancer
+	 */
+	private boolean isUpToDateSince(User user, long cycleStart) {
+		Date latest = user.getLatestLocationTimestamp();
+		return tourGuideService.isTrackingLocation(user) || (latest != null && latest.getTime() >= cycleStart);
+	}
+
+	private static void sleepUntil(long time) throws InterruptedException {
+		long delay = time - System.currentTimeMillis();
+		if (delay > 0) {
+			TimeUnit.MILLISECONDS.sleep(delay);
+		}
+	}
 }
@@ -4,9 +4,9 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.UUID;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
-import com.openclassrooms.tourguide.service.RewardsService;
+import com.openclassrooms.tourguide.concurrent.InFlightRegistry;
 
 import gpsUtil.location.VisitedLocation;
 import tripPricer.Provider;
@@ -17,9 +17,14 @@ public class User {
 	private String phoneNumber;
 	private String emailAddress;
 	private Date latestLocationTimestamp;
-	// COpyOnWriteArrayList permet de gérer le traitement en parallèle de la liste en fonction des utilisateurs 
-	private List<VisitedLocation> visitedLocations = new CopyOnWriteArrayList<>();
-	private List<UserReward> userRewards = new CopyOnWriteArrayList<>(); 
+	// historique optimisé pour l'ajout, lisible sans verrou, avec rétention des endroits les plus anciens
+	private final VisitedLocationLog visitedLocations = new VisitedLocationLog();
+	// récompenses indexées par attraction (ajout atomique, au plus une récompense par attraction)
+	private final UserRewardStore userRewards = new UserRewardStore();
+	// numéro de séquence du premier endroit visité pas encore évalué pour les récompenses
+	private final AtomicLong rewardsWatermark = new AtomicLong();
+	// attente du calcul de récompenses en cours, renseignée par RewardsService au lancement d'un calcul
+	private volatile InFlightRegistry.Handle rewardsCalculation;
 	private UserPreferences userPreferences = new UserPreferences();
 	private List<Provider> tripDeals = new ArrayList<>();
 	public User(UUID userId, String userName, String phoneNumber, String emailAddress) {
@@ -62,10 +67,18 @@ public class User {
 	}
 	
 	public void addToVisitedLocations(VisitedLocation visitedLocation) {
-		visitedLocations.add(visitedLocation);
+		visitedLocations.append(visitedLocation);
 	}
 	
+	/**
+	 * retourne une photographie (non modifiable) des endroits visités encore retenus, du plus ancien au plus récent
+	 * @return
+	 */
 	public List<VisitedLocation> getVisitedLocations() {
+		return visitedLocations.snapshot();
+	}
+	
+	public VisitedLocationLog getVisitedLocationLog() {
 		return visitedLocations;
 	}
 	
@@ -73,17 +86,58 @@ public class User {
 		visitedLocations.clear();
 	}
 	
-	public void addUserReward(UserReward userReward) {
-		if(userRewards.stream().filter(r -> r.attraction.attractionName.equals(userReward.attraction.attractionName)).count() == 0) {
-			userRewards.add(userReward);
-		}
+	public long getRewardsWatermark() {
+		return rewardsWatermark.get();
+	}
+	
+	/**
+	 * avance la marque des endroits visités évalués jusqu'au numéro de séquence "fin" et retourne l'ancienne marque.
+	 * À appeler une fois les endroits jusqu'à "fin" évalués avec succès. La marque ne recule jamais
+	 * @param fin
+	 * @return
+	 */
+	public long advanceRewardsWatermark(long fin) {
+		return rewardsWatermark.getAndAccumulate(fin, Math::max);
+	}
+	
+	/**
+	 * ajoute la récompense si l'attraction n'est pas déjà récompensée
+	 * @param userReward
+	 * @return VRAI si la récompense a été ajoutée
+	 */
+	public boolean addUserReward(UserReward userReward) {
+		return userRewards.addIfAbsent(userReward);
 	}
 	
+	/**
+	 * retourne les récompenses de l'utilisateur (liste non modifiable),
+	 * après avoir attendu la fin du calcul en cours s'il y en a un
+	 * @return
+	 */
 	public List<UserReward> getUserRewards() {
-		RewardsService.attendLaFinDuCalculReward(getUserId());
+		InFlightRegistry.Handle calculation = rewardsCalculation;
+		if (calculation != null) {
+			calculation.await();
+		}
+		return userRewards.asList();
+	}
+	
+	/**
+	 * retourne les récompenses déjà calculées, sans attendre le calcul en cours
+	 * @return
+	 */
+	public List<UserReward> getUserRewardsWithoutWaiting() {
+		return userRewards.asList();
+	}
+	
+	public UserRewardStore getRewardStore() {
 		return userRewards;
 	}
 	
+	public void setRewardsCalculation(InFlightRegistry.Handle rewardsCalculation) {
+		this.rewardsCalculation = rewardsCalculation;
+	}
+	
 	public UserPreferences getUserPreferences() {
 		return userPreferences;
 	}
@@ -92,12 +146,12 @@ public class User {
 		this.userPreferences = userPreferences;
 	}
 
+	/**
+	 * retourne le dernier endroit visité (null si aucun), en O(1) et sans verrou
+	 * @return
+	 */
 	public VisitedLocation getLastVisitedLocation() {
-		if(visitedLocations.size()==0) {
-			return null;
-		}else {
-		return visitedLocations.get(visitedLocations.size() - 1);
-		}
+		return visitedLocations.getLast();
 	}
 	
 	public void setTripDeals(List<Provider> tripDeals) {
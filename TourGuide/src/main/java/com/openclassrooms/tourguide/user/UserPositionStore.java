@@ -0,0 +1,296 @@
+package com.openclassrooms.tourguide.user;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.StampedLock;
+
+import com.openclassrooms.tourguide.attraction.AttractionDistanceKernel;
+
+import gpsUtil.location.Location;
+import gpsUtil.location.VisitedLocation;
+
+/**
+ * copie en colonnes de la dernière position de chaque utilisateur, pour les recherches sur toute la flotte.
+ * Chaque utilisateur reçoit un numéro d'ordre dense (0, 1, 2...) qui indexe des tableaux de primitives parallèles :
+ * latitude, longitude, date, et coordonnées sur la sphère unité (x, y, z) pour les tests de distance.
+ * Un parcours ("combien d'utilisateurs à moins de 10 miles") lit donc des tableaux de double contigus
+ * au lieu de suivre 100 000 graphes d'objets. Le numéro d'un utilisateur retiré est vidé puis réattribué au prochain utilisateur.
+ * Les parcours se font sans verrou ; les mises à jour de position peuvent être simultanées (cases différentes)
+ * et ne sont exclues que pendant l'agrandissement des tableaux. Une position lue pendant sa mise à jour peut mélanger
+ * l'ancienne et la nouvelle valeur : les parcours donnent une photographie approchée à l'instant près
+ */
+public class UserPositionStore {
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private final Map<UUID, Integer> ordinals = new ConcurrentHashMap<>();
+	// verrou "lecture" pour écrire une position, "écriture" pour agrandir les tableaux
+	private final StampedLock growLock = new StampedLock();
+	private volatile Columns columns = new Columns(INITIAL_CAPACITY);
+	// nombre de numéros d'ordre attribués. Écrit après "columns" : un lecteur qui le lit a des tableaux assez grands
+	private volatile int size;
+	// numéros d'ordre libérés par remove, réattribués en priorité (protégés par le verrou "écriture")
+	private final Deque<Integer> freeOrdinals = new ArrayDeque<>();
+
+	/**
+	 * enregistre la dernière position de l'utilisateur et retourne son numéro d'ordre
+	 * @param userId
+	 * @param visitedLocation
+	 * @return
+	 */
+	public int update(UUID userId, VisitedLocation visitedLocation) {
+		int ordinal = ordinals.computeIfAbsent(userId, this::newOrdinal);
+		long stamp = growLock.readLock();
+		try {
+			columns.set(ordinal, visitedLocation);
+		} finally {
+			growLock.unlockRead(stamp);
+		}
+		return ordinal;
+	}
+
+	/**
+	 * retourne le numéro d'ordre de l'utilisateur (-1 s'il n'a pas encore de position enregistrée)
+	 * @param userId
+	 * @return
+	 */
+	public int ordinalOf(UUID userId) {
+		Integer ordinal = ordinals.get(userId);
+		return ordinal == null ? -1 : ordinal;
+	}
+
+	/**
+	 * nombre de numéros d'ordre attribués, y compris ceux libérés et pas encore réattribués
+	 * @return
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * oublie la position de l'utilisateur (utilisateur remplacé ou retiré du registre) : sa case est vidée
+	 * et n'est plus vue par les parcours, son numéro d'ordre sera réattribué
+	 * @param userId
+	 */
+	public void remove(UUID userId) {
+		long stamp = growLock.writeLock();
+		try {
+			Integer ordinal = ordinals.remove(userId);
+			if (ordinal != null) {
+				columns.reset(ordinal);
+				freeOrdinals.push(ordinal);
+			}
+		} finally {
+			growLock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * oublie toutes les positions
+	 */
+	public void clear() {
+		long stamp = growLock.writeLock();
+		try {
+			ordinals.clear();
+			freeOrdinals.clear();
+			columns = new Columns(INITIAL_CAPACITY);
+			size = 0;
+		} finally {
+			growLock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * retourne la dernière position enregistrée pour le numéro d'ordre
+	 * @param ordinal
+	 * @return
+	 */
+	public Location getLocation(int ordinal) {
+		Columns current = columns;
+		return new Location(current.latitudes[ordinal], current.longitudes[ordinal]);
+	}
+
+	/**
+	 * retourne la date (en millisecondes) de la dernière position enregistrée pour le numéro d'ordre
+	 * @param ordinal
+	 * @return
+	 */
+	public long getTimeVisited(int ordinal) {
+		return columns.times[ordinal];
+	}
+
+	/**
+	 * compte les utilisateurs dont la dernière position est à moins de rangeMiles de la position donnée,
+	 * avec le même résultat que RewardsService.getDistance(location, position) : la corde tranche les cas nets,
+	 * les positions dans la bande autour du rayon sont départagées par le calcul de référence
+	 * @param location
+	 * @param rangeMiles
+	 * @return
+	 */
+	public int countWithin(Location location, double rangeMiles) {
+		int nbUsers = size;
+		Columns current = columns;
+		AttractionDistanceKernel.Point point = AttractionDistanceKernel.toPoint(location);
+		AttractionDistanceKernel.Range range = AttractionDistanceKernel.toRange(rangeMiles);
+		double lowerSquaredChord = range.getLowerSquaredChord();
+		double upperSquaredChord = range.getUpperSquaredChord();
+		double px = point.getX();
+		double py = point.getY();
+		double pz = point.getZ();
+		double[] xs = current.xs;
+		double[] ys = current.ys;
+		double[] zs = current.zs;
+		int count = 0;
+		int nbInBand = 0;
+		// boucle simple sur des tableaux de double (pas d'appel de méthode, pas de branche difficile) : le JIT peut la vectoriser.
+		// Les cases sans position valent NaN et ne sont jamais comptées
+		for (int i = 0; i < nbUsers; i++) {
+			double dx = xs[i] - px;
+			double dy = ys[i] - py;
+			double dz = zs[i] - pz;
+			double squaredChord = dx * dx + dy * dy + dz * dz;
+			count += squaredChord <= lowerSquaredChord ? 1 : 0;
+			nbInBand += squaredChord > lowerSquaredChord && squaredChord <= upperSquaredChord ? 1 : 0;
+		}
+		// cas rare : second parcours pour départager les positions de la bande
+		for (int i = 0; nbInBand > 0 && i < nbUsers; i++) {
+			double squaredChord = squaredChord(current, i, px, py, pz);
+			if (squaredChord > lowerSquaredChord && squaredChord <= upperSquaredChord) {
+				nbInBand--;
+				count += isWithinReference(current, i, location, range) ? 1 : 0;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * retourne les identifiants des utilisateurs dont la dernière position est à moins de rangeMiles de la position donnée
+	 * (même test que countWithin)
+	 * @param location
+	 * @param rangeMiles
+	 * @return
+	 */
+	public List<UUID> findWithin(Location location, double rangeMiles) {
+		int nbUsers = size;
+		Columns current = columns;
+		AttractionDistanceKernel.Point point = AttractionDistanceKernel.toPoint(location);
+		AttractionDistanceKernel.Range range = AttractionDistanceKernel.toRange(rangeMiles);
+		double lowerSquaredChord = range.getLowerSquaredChord();
+		double upperSquaredChord = range.getUpperSquaredChord();
+		List<UUID> userIds = new ArrayList<>();
+		for (int i = 0; i < nbUsers; i++) {
+			double squaredChord = squaredChord(current, i, point.getX(), point.getY(), point.getZ());
+			if (squaredChord <= lowerSquaredChord
+					|| (squaredChord <= upperSquaredChord && isWithinReference(current, i, location, range))) {
+				userIds.add(current.userIds[i]);
+			}
+		}
+		return userIds;
+	}
+
+	private static double squaredChord(Columns current, int i, double px, double py, double pz) {
+		double dx = current.xs[i] - px;
+		double dy = current.ys[i] - py;
+		double dz = current.zs[i] - pz;
+		return dx * dx + dy * dy + dz * dz;
+	}
+
+	// calcul de référence (une distance NaN est considérée dans le rayon, comme RewardsService.nearAttraction)
+	private static boolean isWithinReference(Columns current, int i, Location location, AttractionDistanceKernel.Range range) {
+		return !(AttractionDistanceKernel.referenceDistance(location.latitude, location.longitude,
+				current.latitudes[i], current.longitudes[i]) > range.getMiles());
+	}
+
+	private int newOrdinal(UUID userId) {
+		long stamp = growLock.writeLock();
+		try {
+			Integer free = freeOrdinals.poll();
+			if (free != null) {
+				columns.userIds[free] = userId;
+				return free;
+			}
+			int ordinal = size;
+			if (ordinal == columns.userIds.length) {
+				columns = columns.grow(ordinal * 2);
+			}
+			columns.userIds[ordinal] = userId;
+			size = ordinal + 1;
+			return ordinal;
+		} finally {
+			growLock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * tableaux parallèles, tous de la même capacité
+	 */
+	private static final class Columns {
+		private final UUID[] userIds;
+		private final double[] latitudes;
+		private final double[] longitudes;
+		private final long[] times;
+		private final double[] xs;
+		private final double[] ys;
+		private final double[] zs;
+
+		private Columns(int capacity) {
+			this(new UUID[capacity], nanArray(capacity), nanArray(capacity), new long[capacity],
+					nanArray(capacity), nanArray(capacity), nanArray(capacity));
+		}
+
+		private Columns(UUID[] userIds, double[] latitudes, double[] longitudes, long[] times, double[] xs, double[] ys, double[] zs) {
+			this.userIds = userIds;
+			this.latitudes = latitudes;
+			this.longitudes = longitudes;
+			this.times = times;
+			this.xs = xs;
+			this.ys = ys;
+			this.zs = zs;
+		}
+
+		private Columns grow(int capacity) {
+			return new Columns(Arrays.copyOf(userIds, capacity), grow(latitudes, capacity), grow(longitudes, capacity),
+					Arrays.copyOf(times, capacity), grow(xs, capacity), grow(ys, capacity), grow(zs, capacity));
+		}
+
+		private void set(int ordinal, VisitedLocation visitedLocation) {
+			double latitudeRadian = Math.toRadians(visitedLocation.location.latitude);
+			double longitudeRadian = Math.toRadians(visitedLocation.location.longitude);
+			double cosLatitude = Math.cos(latitudeRadian);
+			latitudes[ordinal] = visitedLocation.location.latitude;
+			longitudes[ordinal] = visitedLocation.location.longitude;
+			xs[ordinal] = cosLatitude * Math.cos(longitudeRadian);
+			ys[ordinal] = cosLatitude * Math.sin(longitudeRadian);
+			zs[ordinal] = Math.sin(latitudeRadian);
+			times[ordinal] = visitedLocation.timeVisited == null ? 0 : visitedLocation.timeVisited.getTime();
+		}
+
+		// case sans utilisateur : NaN n'est jamais à portée
+		private void reset(int ordinal) {
+			userIds[ordinal] = null;
+			latitudes[ordinal] = Double.NaN;
+			longitudes[ordinal] = Double.NaN;
+			xs[ordinal] = Double.NaN;
+			ys[ordinal] = Double.NaN;
+			zs[ordinal] = Double.NaN;
+			times[ordinal] = 0;
+		}
+
+		private static double[] nanArray(int capacity) {
+			double[] array = new double[capacity];
+			Arrays.fill(array, Double.NaN);
+			return array;
+		}
+
+		private static double[] grow(double[] array, int capacity) {
+			double[] grown = Arrays.copyOf(array, capacity);
+			Arrays.fill(grown, array.length, capacity, Double.NaN);
+			return grown;
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package com.openclassrooms.tourguide.user;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * registre concurrent des utilisateurs, par nom et par identifiant.
+ * Les parcours ne copient rien : ils sont faiblement cohérents (ils voient les utilisateurs présents au début du parcours,
+ * et peut-être ceux ajoutés pendant), sans jamais lever de ConcurrentModificationException.
+ * L'index par identifiant est mis à jour juste après l'index par nom : un utilisateur qui vient d'être ajouté
+ * peut manquer un court instant à getByUserId
+ */
+public class UserRegistry implements Iterable<User> {
+	private final Map<String, User> usersByName = new ConcurrentHashMap<>();
+	private final Map<UUID, User> usersById = new ConcurrentHashMap<>();
+
+	/**
+	 * ajoute l'utilisateur si aucun utilisateur de même nom n'existe
+	 * @param user
+	 * @return VRAI si l'utilisateur a été ajouté
+	 */
+	public boolean addIfAbsent(User user) {
+		if (usersByName.putIfAbsent(user.getUserName(), user) != null) {
+			return false;
+		}
+		usersById.put(user.getUserId(), user);
+		return true;
+	}
+
+	/**
+	 * ajoute l'utilisateur, en remplaçant celui de même nom s'il existe
+	 * @param user
+	 * @return l'utilisateur remplacé (null s'il n'y en avait pas)
+	 */
+	public User put(User user) {
+		User previous = usersByName.put(user.getUserName(), user);
+		if (previous != null && !previous.getUserId().equals(user.getUserId())) {
+			usersById.remove(previous.getUserId(), previous);
+		}
+		usersById.put(user.getUserId(), user);
+		return previous;
+	}
+
+	public User getByUserName(String userName) {
+		return usersByName.get(userName);
+	}
+
+	public User getByUserId(UUID userId) {
+		return usersById.get(userId);
+	}
+
+	public int size() {
+		return usersByName.size();
+	}
+
+	public void clear() {
+		usersByName.clear();
+		usersById.clear();
+	}
+
+	/**
+	 * vue (non modifiable, sans copie) des utilisateurs
+	 * @return
+	 */
+	public Collection<User> values() {
+		return Collections.unmodifiableCollection(usersByName.values());
+	}
+
+	@Override
+	public Iterator<User> iterator() {
+		return values().iterator();
+	}
+
+	public Stream<User> stream() {
+		return usersByName.values().stream();
+	}
+
+	/**
+	 * découpe les utilisateurs en (au plus) nbPartitions parties disjointes, sans copie, à parcourir chacune par un worker
+	 * @param nbPartitions
+	 * @return
+	 */
+	public List<Spliterator<User>> partitions(int nbPartitions) {
+		List<Spliterator<User>> partitions = new ArrayList<>(nbPartitions);
+		partitions.add(usersByName.values().spliterator());
+		while (partitions.size() < nbPartitions) {
+			// je coupe en deux la plus grande partie
+			int largest = 0;
+			for (int i = 1; i < partitions.size(); i++) {
+				if (partitions.get(i).estimateSize() > partitions.get(largest).estimateSize()) {
+					largest = i;
+				}
+			}
+			Spliterator<User> prefix = partitions.get(largest).trySplit();
+			if (prefix == null) {
+				break;
+			}
+			partitions.add(prefix);
+		}
+		return partitions;
+	}
+}
@@ -0,0 +1,83 @@
+package com.openclassrooms.tourguide.user;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * récompenses d'un utilisateur, indexées par attractionId.
+ * Savoir si une attraction est déjà récompensée et ajouter une récompense se font en O(1), de façon atomique
+ * (au plus une récompense par attraction), quel que soit le nombre de récompenses.
+ * La liste des récompenses (dans l'ordre d'ajout) est une photographie immuable, reconstruite seulement
+ * à la première lecture qui suit un ajout
+ */
+public class UserRewardStore {
+	private final Map<UUID, UserReward> rewardsByAttractionId = new ConcurrentHashMap<>();
+	// ordre d'ajout (écrit sous le verrou de l'objet)
+	private final List<UserReward> ordered = new ArrayList<>();
+	private final AtomicLong totalRewardPoints = new AtomicLong();
+	// photographie de "ordered", null après un ajout
+	private volatile List<UserReward> view = List.of();
+
+	/**
+	 * ajoute la récompense si l'attraction n'est pas encore récompensée
+	 * @param userReward
+	 * @return VRAI si la récompense a été ajoutée
+	 */
+	public boolean addIfAbsent(UserReward userReward) {
+		if (rewardsByAttractionId.putIfAbsent(userReward.attraction.attractionId, userReward) != null) {
+			return false;
+		}
+		totalRewardPoints.addAndGet(userReward.getRewardPoints());
+		synchronized (this) {
+			ordered.add(userReward);
+			view = null;
+		}
+		return true;
+	}
+
+	/**
+	 * retourne VRAI si l'attraction est déjà récompensée
+	 * @param attractionId
+	 * @return
+	 */
+	public boolean contains(UUID attractionId) {
+		return rewardsByAttractionId.containsKey(attractionId);
+	}
+
+	public UserReward get(UUID attractionId) {
+		return rewardsByAttractionId.get(attractionId);
+	}
+
+	public int size() {
+		return rewardsByAttractionId.size();
+	}
+
+	/**
+	 * somme des points des récompenses, tenue à jour à chaque ajout
+	 * @return
+	 */
+	public long getTotalRewardPoints() {
+		return totalRewardPoints.get();
+	}
+
+	/**
+	 * retourne la liste (non modifiable) des récompenses, dans l'ordre d'ajout
+	 * @return
+	 */
+	public List<UserReward> asList() {
+		List<UserReward> current = view;
+		if (current == null) {
+			synchronized (this) {
+				if (view == null) {
+					view = List.copyOf(ordered);
+				}
+				current = view;
+			}
+		}
+		return current;
+	}
+}
@@ -0,0 +1,299 @@
+package com.openclassrooms.tourguide.user;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+
+import gpsUtil.location.Attraction;
+import gpsUtil.location.Location;
+import gpsUtil.location.VisitedLocation;
+
+/**
+ * photographie binaire des utilisateurs (identité, préférences, endroits visités, récompenses) dans un fichier,
+ * écrite et relue par des FileChannel mappés en mémoire.
+ * Format : en-tête (magic, version, date, nombre d'utilisateurs), table des positions de chaque utilisateur,
+ * puis un enregistrement par utilisateur. Grâce à la table, les enregistrements sont encodés et décodés en parallèle,
+ * chacun directement depuis la zone mappée qui le contient (zones d'au plus 1 Go, la limite d'un MappedByteBuffer étant 2 Go).
+ * Les attractions des récompenses sont retrouvées par leur nom dans le catalogue courant
+ * (les identifiants des attractions de gpsUtil changent à chaque démarrage)
+ */
+public final class UserSnapshotFile {
+	private static final int MAGIC = 0x54475553; // "TGUS"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 4 + 4 + 8 + 4;
+	private static final long MAX_SEGMENT_BYTES = 1L << 30;
+	private static final long NO_DATE = Long.MIN_VALUE;
+
+	private UserSnapshotFile() {
+	}
+
+	/**
+	 * écrit la photographie des utilisateurs dans le fichier (remplacé d'un coup à la fin de l'écriture)
+	 * et retourne le nombre d'utilisateurs écrits. La collection peut changer pendant l'écriture (vue du registre) :
+	 * les enregistrements sont encodés en un seul parcours avant d'écrire l'en-tête
+	 * @param path
+	 * @param users
+	 * @return
+	 * @throws IOException
+	 */
+	public static int write(Path path, Collection<User> users) throws IOException {
+		byte[][] records;
+		try {
+			records = users.parallelStream().map(UserSnapshotFile::encode).toArray(byte[][]::new);
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+		long[] offsets = new long[records.length + 1];
+		offsets[0] = HEADER_SIZE + 8L * offsets.length;
+		for (int i = 0; i < records.length; i++) {
+			offsets[i + 1] = offsets[i] + records[i].length;
+		}
+
+		Path parent = path.toAbsolutePath().getParent();
+		if (parent != null) {
+			Files.createDirectories(parent);
+		}
+		Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+		try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, offsets[0]);
+			header.putInt(MAGIC).putInt(VERSION).putLong(System.currentTimeMillis()).putInt(records.length);
+			header.asLongBuffer().put(offsets);
+			header.force();
+			ByteBuffer[] slices = mapRecords(channel, FileChannel.MapMode.READ_WRITE, offsets);
+			IntStream.range(0, records.length).parallel().forEach(i -> slices[i].put(records[i]));
+			channel.force(false);
+		}
+		Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		return records.length;
+	}
+
+	/**
+	 * relit la photographie des utilisateurs. Un fichier tronqué ou corrompu lève une IOException
+	 * (les tailles lues sont vérifiées avant toute allocation)
+	 * @param path
+	 * @param attractionResolver retourne l'attraction du catalogue courant à partir de son nom (null si elle n'existe plus)
+	 * @return
+	 * @throws IOException
+	 */
+	public static List<User> read(Path path, Function<String, Attraction> attractionResolver) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long fileSize = channel.size();
+			if (fileSize < HEADER_SIZE) {
+				throw new IOException("Truncated user snapshot " + path);
+			}
+			MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+			if (header.getInt() != MAGIC) {
+				throw new IOException(path + " is not a user snapshot");
+			}
+			int version = header.getInt();
+			if (version != VERSION) {
+				throw new IOException("Unsupported user snapshot version " + version + " in " + path);
+			}
+			header.getLong();
+			int nbUsers = header.getInt();
+			// la table des positions doit tenir dans le fichier avant d'être allouée
+			if (nbUsers < 0 || HEADER_SIZE + 8L * (nbUsers + 1L) > fileSize) {
+				throw new IOException("Corrupt user snapshot " + path + ": invalid user count " + nbUsers);
+			}
+			long[] offsets = new long[nbUsers + 1];
+			channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, 8L * offsets.length).asLongBuffer().get(offsets);
+			checkOffsets(path, offsets, fileSize);
+			ByteBuffer[] slices = mapRecords(channel, FileChannel.MapMode.READ_ONLY, offsets);
+			User[] users = new User[nbUsers];
+			try {
+				IntStream.range(0, nbUsers).parallel().forEach(i -> users[i] = decode(slices[i], attractionResolver));
+			} catch (BufferUnderflowException | IllegalArgumentException e) {
+				throw new IOException("Corrupt user snapshot " + path, e);
+			}
+			return Arrays.asList(users);
+		}
+	}
+
+	/**
+	 * vérifie que les enregistrements se suivent, commencent juste après la table, tiennent dans le fichier
+	 * et dans une zone mappée
+	 */
+	private static void checkOffsets(Path path, long[] offsets, long fileSize) throws IOException {
+		if (offsets[0] != HEADER_SIZE + 8L * offsets.length) {
+			throw new IOException("Corrupt user snapshot " + path + ": invalid first record offset " + offsets[0]);
+		}
+		for (int i = 0; i < offsets.length - 1; i++) {
+			long length = offsets[i + 1] - offsets[i];
+			if (length < 0 || length > MAX_SEGMENT_BYTES) {
+				throw new IOException("Corrupt user snapshot " + path + ": invalid record offset " + offsets[i + 1]);
+			}
+		}
+		if (offsets[offsets.length - 1] > fileSize) {
+			throw new IOException("Truncated user snapshot " + path);
+		}
+	}
+
+	/**
+	 * mappe les enregistrements par zones d'au plus MAX_SEGMENT_BYTES et retourne la tranche de chaque enregistrement
+	 */
+	private static ByteBuffer[] mapRecords(FileChannel channel, FileChannel.MapMode mode, long[] offsets) throws IOException {
+		int nbRecords = offsets.length - 1;
+		ByteBuffer[] slices = new ByteBuffer[nbRecords];
+		int debut = 0;
+		while (debut < nbRecords) {
+			int fin = debut + 1;
+			while (fin < nbRecords && offsets[fin + 1] - offsets[debut] <= MAX_SEGMENT_BYTES) {
+				fin++;
+			}
+			MappedByteBuffer segment = channel.map(mode, offsets[debut], offsets[fin] - offsets[debut]);
+			for (int i = debut; i < fin; i++) {
+				slices[i] = segment.slice((int) (offsets[i] - offsets[debut]), (int) (offsets[i + 1] - offsets[i]));
+			}
+			debut = fin;
+		}
+		return slices;
+	}
+
+	private static byte[] encode(User user) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			out.writeLong(user.getUserId().getMostSignificantBits());
+			out.writeLong(user.getUserId().getLeastSignificantBits());
+			writeString(out, user.getUserName());
+			writeString(out, user.getPhoneNumber());
+			writeString(out, user.getEmailAddress());
+			writeDate(out, user.getLatestLocationTimestamp());
+
+			UserPreferences preferences = user.getUserPreferences();
+			out.writeInt(preferences.getAttractionProximity());
+			out.writeInt(preferences.getTripDuration());
+			out.writeInt(preferences.getTicketQuantity());
+			out.writeInt(preferences.getNumberOfAdults());
+			out.writeInt(preferences.getNumberOfChildren());
+
+			// les endroits visités retenus, et combien d'entre eux (les derniers) n'ont pas encore été évalués pour les récompenses
+			VisitedLocationLog log = user.getVisitedLocationLog();
+			long fin = log.getNextSequence();
+			List<VisitedLocation> visitedLocations = log.entriesBetween(0, fin);
+			long debut = fin - visitedLocations.size();
+			long nbPending = Math.min(visitedLocations.size(), fin - Math.max(debut, user.getRewardsWatermark()));
+			out.writeInt(visitedLocations.size());
+			out.writeInt((int) Math.max(0, nbPending));
+			for (VisitedLocation visitedLocation : visitedLocations) {
+				writeVisitedLocation(out, visitedLocation);
+			}
+
+			List<UserReward> userRewards = user.getUserRewardsWithoutWaiting();
+			out.writeInt(userRewards.size());
+			for (UserReward userReward : userRewards) {
+				writeVisitedLocation(out, userReward.visitedLocation);
+				Attraction attraction = userReward.attraction;
+				writeString(out, attraction.attractionName);
+				writeString(out, attraction.city);
+				writeString(out, attraction.state);
+				out.writeDouble(attraction.latitude);
+				out.writeDouble(attraction.longitude);
+				out.writeInt(userReward.getRewardPoints());
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	private static User decode(ByteBuffer in, Function<String, Attraction> attractionResolver) {
+		UUID userId = new UUID(in.getLong(), in.getLong());
+		User user = new User(userId, readString(in), readString(in), readString(in));
+		user.setLatestLocationTimestamp(readDate(in));
+
+		UserPreferences preferences = new UserPreferences();
+		preferences.setAttractionProximity(in.getInt());
+		preferences.setTripDuration(in.getInt());
+		preferences.setTicketQuantity(in.getInt());
+		preferences.setNumberOfAdults(in.getInt());
+		preferences.setNumberOfChildren(in.getInt());
+		user.setUserPreferences(preferences);
+
+		int nbVisitedLocations = in.getInt();
+		int nbPending = in.getInt();
+		for (int i = 0; i < nbVisitedLocations; i++) {
+			user.addToVisitedLocations(readVisitedLocation(in, userId));
+		}
+		user.advanceRewardsWatermark(nbVisitedLocations - nbPending);
+
+		int nbRewards = in.getInt();
+		for (int i = 0; i < nbRewards; i++) {
+			VisitedLocation visitedLocation = readVisitedLocation(in, userId);
+			String attractionName = readString(in);
+			String city = readString(in);
+			String state = readString(in);
+			double latitude = in.getDouble();
+			double longitude = in.getDouble();
+			Attraction attraction = attractionResolver.apply(attractionName);
+			if (attraction == null) {
+				attraction = new Attraction(attractionName, city, state, latitude, longitude);
+			}
+			user.addUserReward(new UserReward(visitedLocation, attraction, in.getInt()));
+		}
+		return user;
+	}
+
+	// l'identifiant de l'utilisateur n'est pas répété pour chaque endroit visité
+	private static void writeVisitedLocation(DataOutputStream out, VisitedLocation visitedLocation) throws IOException {
+		out.writeDouble(visitedLocation.location.latitude);
+		out.writeDouble(visitedLocation.location.longitude);
+		writeDate(out, visitedLocation.timeVisited);
+	}
+
+	private static VisitedLocation readVisitedLocation(ByteBuffer in, UUID userId) {
+		double latitude = in.getDouble();
+		double longitude = in.getDouble();
+		return new VisitedLocation(userId, new Location(latitude, longitude), readDate(in));
+	}
+
+	private static void writeDate(DataOutputStream out, Date date) throws IOException {
+		out.writeLong(date == null ? NO_DATE : date.getTime());
+	}
+
+	private static Date readDate(ByteBuffer in) {
+		long time = in.getLong();
+		return time == NO_DATE ? null : new Date(time);
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(ByteBuffer in) {
+		int length = in.getInt();
+		if (length < 0) {
+			return null;
+		}
+		if (length > in.remaining()) {
+			// longueur corrompue : on ne l'alloue pas
+			throw new BufferUnderflowException();
+		}
+		byte[] bytes = new byte[length];
+		in.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
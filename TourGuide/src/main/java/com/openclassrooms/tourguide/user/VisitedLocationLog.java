@@ -0,0 +1,228 @@
+package com.openclassrooms.tourguide.user;
+
+import java.time.Duration;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.function.Consumer;
+
+import gpsUtil.location.VisitedLocation;
+
+/**
+ * historique des endroits visités d'un utilisateur, optimisé pour l'ajout.
+ * Les endroits sont rangés dans des blocs de taille fixe : un ajout écrit une case et n'ajoute un bloc que tous les
+ * CHUNK_SIZE endroits (au lieu de recopier tout le tableau comme la CopyOnWriteArrayList).
+ * Chaque endroit reçoit un numéro de séquence croissant (nombre d'ajouts depuis la création), qui ne change pas
+ * quand les plus anciens sont retirés : le calcul des récompenses s'en sert pour savoir où il s'est arrêté.
+ * Les lectures se font sans verrou (dernier endroit en O(1), photographies immuables) ; les ajouts sont synchronisés.
+ * La rétention (nombre maximum d'endroits et / ou âge maximum) est désactivée par défaut ; quand elle est configurée,
+ * elle retire les blocs les plus anciens, qui peuvent être transmis à un "spillHandler" (archivage) avant d'être oubliés
+ */
+public class VisitedLocationLog {
+	// pas de limite : l'historique est complet tant que la rétention n'est pas configurée
+	public static final Retention DEFAULT_RETENTION = new Retention(0, null);
+	static final int CHUNK_SIZE = 32;
+
+	// changée par le service qui gère l'utilisateur (configuration de l'application)
+	private volatile Retention retention;
+	// null : les endroits retirés sont simplement oubliés
+	private final Consumer<List<VisitedLocation>> spillHandler;
+	// blocs retenus, contigus en numéros de séquence (tableau remplacé, jamais modifié, quand un bloc est ajouté ou retiré)
+	private volatile Chunk[] chunks = new Chunk[0];
+	// numéro de séquence du prochain ajout. Écrit en dernier par append : un lecteur qui le lit voit les endroits d'avant
+	private volatile long nextSequence;
+	// premier numéro de séquence encore visible
+	private volatile long firstSequence;
+	private volatile VisitedLocation last;
+
+	public VisitedLocationLog() {
+		this(null, null);
+	}
+
+	/**
+	 * @param retention null : DEFAULT_RETENTION
+	 * @param spillHandler archivage des endroits retirés par la rétention (null : ils sont simplement oubliés)
+	 */
+	public VisitedLocationLog(Retention retention, Consumer<List<VisitedLocation>> spillHandler) {
+		this.retention = retention != null ? retention : DEFAULT_RETENTION;
+		this.spillHandler = spillHandler;
+	}
+
+	/**
+	 * change la rétention de l'historique, appliquée tout de suite aux endroits déjà retenus
+	 * @param retention
+	 */
+	public synchronized void setRetention(Retention retention) {
+		this.retention = retention;
+		applyRetention();
+	}
+
+	public Retention getRetention() {
+		return retention;
+	}
+
+	/**
+	 * ajoute un endroit visité et retourne son numéro de séquence
+	 * @param visitedLocation
+	 * @return
+	 */
+	public synchronized long append(VisitedLocation visitedLocation) {
+		long sequence = nextSequence;
+		Chunk[] current = chunks;
+		Chunk tail = current.length == 0 ? null : current[current.length - 1];
+		if (tail == null || sequence - tail.baseSequence >= CHUNK_SIZE) {
+			tail = new Chunk(sequence);
+			Chunk[] grown = Arrays.copyOf(current, current.length + 1);
+			grown[current.length] = tail;
+			chunks = grown;
+		}
+		tail.entries[(int) (sequence - tail.baseSequence)] = visitedLocation;
+		if (visitedLocation.timeVisited != null) {
+			tail.newestTime = Math.max(tail.newestTime, visitedLocation.timeVisited.getTime());
+		}
+		last = visitedLocation;
+		nextSequence = sequence + 1;
+		applyRetention();
+		return sequence;
+	}
+
+	/**
+	 * retourne le dernier endroit visité (null si aucun), sans verrou
+	 * @return
+	 */
+	public VisitedLocation getLast() {
+		return last;
+	}
+
+	/**
+	 * numéro de séquence du prochain ajout (= nombre total d'ajouts)
+	 * @return
+	 */
+	public long getNextSequence() {
+		return nextSequence;
+	}
+
+	/**
+	 * numéro de séquence du plus ancien endroit encore visible
+	 * @return
+	 */
+	public long getFirstSequence() {
+		return firstSequence;
+	}
+
+	public int size() {
+		return entriesBetween(0, Long.MAX_VALUE).size();
+	}
+
+	/**
+	 * photographie immuable des endroits visibles
+	 * @return
+	 */
+	public List<VisitedLocation> snapshot() {
+		return entriesBetween(0, Long.MAX_VALUE);
+	}
+
+	/**
+	 * photographie immuable des endroits de numéro de séquence compris entre from (inclus) et to (exclus)
+	 * qui sont encore visibles
+	 * @param from
+	 * @param to
+	 * @return
+	 */
+	public List<VisitedLocation> entriesBetween(long from, long to) {
+		// nextSequence est lu avant les blocs : les blocs lus contiennent au moins tous les endroits avant "end"
+		long end = Math.min(to, nextSequence);
+		Chunk[] current = chunks;
+		if (current.length == 0) {
+			return List.of();
+		}
+		long start = Math.max(from, Math.max(firstSequence, current[0].baseSequence));
+		if (start >= end) {
+			return List.of();
+		}
+		return new Snapshot(current, start, end);
+	}
+
+	/**
+	 * vide l'historique (les numéros de séquence continuent)
+	 */
+	public synchronized void clear() {
+		chunks = new Chunk[0];
+		firstSequence = nextSequence;
+		last = null;
+	}
+
+	private void applyRetention() {
+		Retention applied = retention;
+		long first = firstSequence;
+		if (applied.maxEntries() > 0) {
+			first = Math.max(first, nextSequence - applied.maxEntries());
+		}
+		Chunk[] current = chunks;
+		if (applied.maxAge() != null) {
+			long cutoff = System.currentTimeMillis() - applied.maxAge().toMillis();
+			// un bloc plein n'est retiré que si tous ses endroits sont trop vieux (les dates ne sont pas forcément dans l'ordre)
+			for (int i = 0; i < current.length - 1 && current[i].newestTime < cutoff; i++) {
+				first = Math.max(first, current[i].baseSequence + CHUNK_SIZE);
+			}
+		}
+		firstSequence = first;
+		// les blocs entièrement avant "first" sont libérés
+		int nbDropped = 0;
+		while (nbDropped < current.length && current[nbDropped].baseSequence + CHUNK_SIZE <= first) {
+			nbDropped++;
+		}
+		if (nbDropped > 0) {
+			chunks = Arrays.copyOfRange(current, nbDropped, current.length);
+			if (spillHandler != null) {
+				for (int i = 0; i < nbDropped; i++) {
+					spillHandler.accept(List.of(current[i].entries));
+				}
+			}
+		}
+	}
+
+	/**
+	 * rétention de l'historique : nombre maximum d'endroits (0 : pas de limite) et âge maximum (null : pas de limite)
+	 */
+	public record Retention(int maxEntries, Duration maxAge) {
+	}
+
+	private static final class Chunk {
+		private final long baseSequence;
+		private final VisitedLocation[] entries = new VisitedLocation[CHUNK_SIZE];
+		// date la plus récente du bloc, pour la rétention par âge (lue et écrite sous le verrou de l'historique)
+		private long newestTime = Long.MIN_VALUE;
+
+		private Chunk(long baseSequence) {
+			this.baseSequence = baseSequence;
+		}
+	}
+
+	private static final class Snapshot extends AbstractList<VisitedLocation> implements RandomAccess {
+		private final Chunk[] chunks;
+		private final long start;
+		private final int size;
+
+		private Snapshot(Chunk[] chunks, long start, long end) {
+			this.chunks = chunks;
+			this.start = start;
+			this.size = (int) (end - start);
+		}
+
+		@Override
+		public VisitedLocation get(int index) {
+			if (index < 0 || index >= size) {
+				throw new IndexOutOfBoundsException(index);
+			}
+			long offset = start + index - chunks[0].baseSequence;
+			return chunks[(int) (offset / CHUNK_SIZE)].entries[(int) (offset % CHUNK_SIZE)];
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+	}
+}
@@ -0,0 +1,229 @@
+package com.openclassrooms.tourguide;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import com.openclassrooms.tourguide.helper.InternalTestHelper;
+
+/**
+ * test de charge HTTP des endpoints de TourGuideController.
+ * L'application est démarrée sur un port libre avec un nombre d'utilisateurs internes configurable, puis un mélange de
+ * requêtes (/getLocation, /getNearbyAttractions, /getRewards, /getTripDeals) est envoyé à débit constant (boucle ouverte).
+ * La latence est mesurée depuis l'heure d'envoi prévue, pas depuis l'envoi réel : si le client prend du retard,
+ * ce retard compte dans la latence (pas d'omission coordonnée).
+ * Le rapport (requêtes, erreurs, débit, p50/p95/p99/max par endpoint) est écrit dans un fichier.
+ *
+ * Désactivé par défaut, il se lance avec :
+ *
+ * mvn test -Dtest=TestHttpLoad -Dtourguide.loadtest=true
+ *
+ * Options (propriétés système) :
+ * tourguide.loadtest.users (1000), tourguide.loadtest.rps (200), tourguide.loadtest.duration-seconds (30),
+ * tourguide.loadtest.warmup-seconds (5), tourguide.loadtest.mix ("getLocation:4,getNearbyAttractions:3,getRewards:2,getTripDeals:1"),
+ * tourguide.loadtest.report (target/loadtest/report-<date>.md), tourguide.loadtest.max-error-rate (0.01)
+ */
+@EnabledIfSystemProperty(named = "tourguide.loadtest", matches = "true")
+public class TestHttpLoad {
+	private static final long SEED = 42;
+
+	private static ConfigurableApplicationContext context;
+	private static int port;
+	private static int nbUsers;
+
+	@BeforeAll
+	public static void startApplication() {
+		nbUsers = Integer.getInteger("tourguide.loadtest.users", 1000);
+		InternalTestHelper.setInternalUserNumber(nbUsers);
+		context = new SpringApplicationBuilder(TourguideApplication.class)
+				.properties("server.port=0", "debug=false", "logging.level.root=WARN",
+						"tourguide.users.generation.seed=" + SEED)
+				.run();
+		port = Integer.parseInt(context.getEnvironment().getProperty("local.server.port"));
+	}
+
+	@AfterAll
+	public static void stopApplication() {
+		if (context != null) {
+			context.close();
+		}
+	}
+
+	@Test
+	public void endpointsUnderLoad() throws Exception {
+		double rps = Double.parseDouble(System.getProperty("tourguide.loadtest.rps", "200"));
+		long durationSeconds = Long.getLong("tourguide.loadtest.duration-seconds", 30);
+		long warmupSeconds = Long.getLong("tourguide.loadtest.warmup-seconds", 5);
+		Map<String, Integer> mix = parseMix(System.getProperty("tourguide.loadtest.mix", "getLocation:4,getNearbyAttractions:3,getRewards:2,getTripDeals:1"));
+		double maxErrorRate = Double.parseDouble(System.getProperty("tourguide.loadtest.max-error-rate", "0.01"));
+		Path report = Path.of(System.getProperty("tourguide.loadtest.report",
+				"target/loadtest/report-" + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss")) + ".md"));
+
+		// un tirage pondéré par requête : endpoints[i] est choisi avec la probabilité mix[i] / somme des poids
+		String[] endpoints = mix.keySet().toArray(new String[0]);
+		int[] cumulativeWeights = new int[endpoints.length];
+		int totalWeight = 0;
+		for (int i = 0; i < endpoints.length; i++) {
+			totalWeight += mix.get(endpoints[i]);
+			cumulativeWeights[i] = totalWeight;
+		}
+
+		Map<String, EndpointStats> stats = new LinkedHashMap<>();
+		for (String endpoint : endpoints) {
+			stats.put(endpoint, new EndpointStats());
+		}
+		HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(5)).build();
+		SplittableRandom random = new SplittableRandom(SEED);
+		long intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / rps);
+		long nbRequests = (long) (rps * (warmupSeconds + durationSeconds));
+		long nbWarmupRequests = (long) (rps * warmupSeconds);
+		List<CompletableFuture<?>> pending = new ArrayList<>();
+
+		long start = System.nanoTime();
+		for (long i = 0; i < nbRequests; i++) {
+			long scheduled = start + i * intervalNanos;
+			long delay = scheduled - System.nanoTime();
+			if (delay > 0) {
+				TimeUnit.NANOSECONDS.sleep(delay);
+			}
+			int tirage = random.nextInt(totalWeight);
+			int e = 0;
+			while (cumulativeWeights[e] <= tirage) {
+				e++;
+			}
+			String endpoint = endpoints[e];
+			URI uri = URI.create("http://localhost:" + port + "/" + endpoint + "?userName=internalUser" + random.nextInt(nbUsers));
+			HttpRequest request = HttpRequest.newBuilder(uri).timeout(Duration.ofSeconds(30)).GET().build();
+			// les requêtes de chauffe ne sont pas comptées
+			EndpointStats endpointStats = i < nbWarmupRequests ? null : stats.get(endpoint);
+			pending.add(client.sendAsync(request, HttpResponse.BodyHandlers.discarding()).handle((response, error) -> {
+				if (endpointStats != null) {
+					endpointStats.record(System.nanoTime() - scheduled, error == null && response.statusCode() < 400);
+				}
+				return null;
+			}));
+		}
+		CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).get(2, TimeUnit.MINUTES);
+		double elapsedSeconds = (System.nanoTime() - start - TimeUnit.SECONDS.toNanos(warmupSeconds)) / 1e9;
+
+		writeReport(report, stats, rps, durationSeconds, elapsedSeconds);
+		System.out.println("Load test report written to " + report.toAbsolutePath());
+
+		long total = stats.values().stream().mapToLong(EndpointStats::count).sum();
+		long errors = stats.values().stream().mapToLong(s -> s.errors.get()).sum();
+		assertTrue(total > 0);
+		assertTrue(errors <= maxErrorRate * total, errors + " errors out of " + total + " requests");
+	}
+
+	private void writeReport(Path report, Map<String, EndpointStats> stats, double rps, long durationSeconds, double elapsedSeconds) throws IOException {
+		if (report.toAbsolutePath().getParent() != null) {
+			Files.createDirectories(report.toAbsolutePath().getParent());
+		}
+		try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(report))) {
+			out.println("# TourGuide HTTP load test");
+			out.println();
+			out.printf(Locale.US, "users: %d, target: %.0f req/s, duration: %d s, JVM: %s, processors: %d%n", nbUsers, rps, durationSeconds,
+					Runtime.version(), Runtime.getRuntime().availableProcessors());
+			out.println();
+			out.println("| endpoint | requests | errors | error rate | throughput (req/s) | p50 (ms) | p95 (ms) | p99 (ms) | max (ms) |");
+			out.println("|---|---|---|---|---|---|---|---|---|");
+			EndpointStats all = new EndpointStats();
+			stats.forEach((endpoint, s) -> {
+				printLine(out, endpoint, s, elapsedSeconds);
+				all.addAll(s);
+			});
+			printLine(out, "all", all, elapsedSeconds);
+		}
+	}
+
+	private static void printLine(PrintWriter out, String endpoint, EndpointStats s, double elapsedSeconds) {
+		long[] latencies = s.sortedLatencies();
+		long count = latencies.length;
+		long errors = s.errors.get();
+		out.printf(Locale.US, "| %s | %d | %d | %.2f%% | %.1f | %.1f | %.1f | %.1f | %.1f |%n", endpoint, count, errors,
+				count == 0 ? 0.0 : 100.0 * errors / count, count / elapsedSeconds,
+				percentileMillis(latencies, 50), percentileMillis(latencies, 95), percentileMillis(latencies, 99), percentileMillis(latencies, 100));
+	}
+
+	// percentile au rang le plus proche
+	private static double percentileMillis(long[] sortedLatencies, double percentile) {
+		if (sortedLatencies.length == 0) {
+			return 0;
+		}
+		int rank = (int) Math.ceil(percentile / 100 * sortedLatencies.length);
+		return sortedLatencies[Math.max(0, rank - 1)] / 1e6;
+	}
+
+	private static Map<String, Integer> parseMix(String mix) {
+		Map<String, Integer> weights = new LinkedHashMap<>();
+		for (String part : mix.split(",")) {
+			String[] endpointWeight = part.trim().split(":");
+			weights.put(endpointWeight[0], endpointWeight.length > 1 ? Integer.parseInt(endpointWeight[1]) : 1);
+		}
+		return weights;
+	}
+
+	/**
+	 * latences (en nanosecondes) et erreurs d'un endpoint
+	 */
+	private static final class EndpointStats {
+		private long[] latencies = new long[1024];
+		private int count;
+		private final AtomicLong errors = new AtomicLong();
+
+		private synchronized void record(long latencyNanos, boolean success) {
+			if (count == latencies.length) {
+				latencies = Arrays.copyOf(latencies, count * 2);
+			}
+			latencies[count++] = latencyNanos;
+			if (!success) {
+				errors.incrementAndGet();
+			}
+		}
+
+		private synchronized void addAll(EndpointStats other) {
+			long[] otherLatencies = other.sortedLatencies();
+			for (long latency : otherLatencies) {
+				record(latency, true);
+			}
+			errors.addAndGet(other.errors.get());
+		}
+
+		private synchronized long count() {
+			return count;
+		}
+
+		private synchronized long[] sortedLatencies() {
+			long[] sorted = Arrays.copyOf(latencies, count);
+			Arrays.sort(sorted);
+			return sorted;
+		}
+	}
+}
@@ -43,6 +43,11 @@ public class TestPerformance {
 	 * highVolumeGetRewards: 100,000 users within 20 minutes:
 	 * assertTrue(TimeUnit.MINUTES.toSeconds(20) >=
 	 * TimeUnit.MILLISECONDS.toSeconds(stopWatch.getTime()));
+	 *
+	 * The execution mode (fixed thread pools or virtual threads) can be compared
+	 * by running the tests with the system property:
+	 *
+	 * mvn test -Dtest=TestPerformance -Dtourguide.execution.mode=VIRTUAL_THREADS
 	 */
 
 	
@@ -70,9 +75,10 @@ public class TestPerformance {
 		stopWatch.stop();
 		tourGuideService.tracker.stopTracking();
 
-		System.out.println("highVolumeTrackLocation: Time Elapsed: "
+		System.out.println("highVolumeTrackLocation (" + rewardsService.getExecutionMode() + "): Time Elapsed: "
 				+ TimeUnit.MILLISECONDS.toSeconds(stopWatch.getTime()) + " seconds.");
 		assertTrue(TimeUnit.MINUTES.toSeconds(15) >= TimeUnit.MILLISECONDS.toSeconds(stopWatch.getTime()));
+		rewardsService.shutdown();
 	}
 
 	
@@ -105,9 +111,10 @@ public class TestPerformance {
 		stopWatch.stop();
 		tourGuideService.tracker.stopTracking();
 
-		System.out.println("highVolumeGetRewards: Time Elapsed: " + TimeUnit.MILLISECONDS.toSeconds(stopWatch.getTime())
+		System.out.println("highVolumeGetRewards (" + rewardsService.getExecutionMode() + "): Time Elapsed: " + TimeUnit.MILLISECONDS.toSeconds(stopWatch.getTime())
 				+ " seconds.");
 		assertTrue(TimeUnit.MINUTES.toSeconds(20) >= TimeUnit.MILLISECONDS.toSeconds(stopWatch.getTime()));
+		rewardsService.shutdown();
 	}
 
 }
@@ -1,19 +1,37 @@
 package com.openclassrooms.tourguide;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.Random;
 import java.util.UUID;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.junit.jupiter.api.Test;
 
 import gpsUtil.GpsUtil;
 import gpsUtil.location.Attraction;
+import gpsUtil.location.Location;
 import gpsUtil.location.VisitedLocation;
 import rewardCentral.RewardCentral;
+import com.openclassrooms.tourguide.attraction.AttractionCatalog;
+import com.openclassrooms.tourguide.attraction.AttractionDistanceKernel;
+import com.openclassrooms.tourguide.attraction.AttractionSnapshot;
+import com.openclassrooms.tourguide.attraction.AttractionSpatialIndex;
 import com.openclassrooms.tourguide.helper.InternalTestHelper;
+import com.openclassrooms.tourguide.service.RewardPointsCache;
 import com.openclassrooms.tourguide.service.RewardsService;
 import com.openclassrooms.tourguide.service.TourGuideService;
 import com.openclassrooms.tourguide.user.User;
@@ -36,6 +54,186 @@ public class TestRewardsService {
 		List<UserReward> userRewards = user.getUserRewards();
 		tourGuideService.tracker.stopTracking();
 		assertTrue(userRewards.size() == 1);
+		rewardsService.shutdown();
+	}
+
+	@Test
+	public void incrementalRewards() {
+		GpsUtil gpsUtil = new GpsUtil();
+		RewardsService rewardsService = new RewardsService(gpsUtil, new RewardCentral());
+		List<Attraction> attractions = rewardsService.getAttractionCatalog().getSnapshot().getAttractions();
+
+		User user = new User(UUID.randomUUID(), "jon", "000", "jon@tourGuide.com");
+		user.addToVisitedLocations(new VisitedLocation(user.getUserId(), attractions.get(0), new Date()));
+		rewardsService.calculateRewards(user);
+		assertEquals(1, user.getUserRewards().size());
+		assertEquals(1, user.getRewardsWatermark());
+
+		user.addToVisitedLocations(new VisitedLocation(user.getUserId(), attractions.get(1), new Date()));
+		rewardsService.calculateRewards(user);
+		assertEquals(2, user.getUserRewards().size());
+		assertEquals(2, user.getRewardsWatermark());
+
+		// seuls les nouveaux endroits visités sont évalués : agrandir le rayon ne change rien aux endroits déjà évalués,
+		// le recalcul complet réévalue tout l'historique
+		rewardsService.setProximityBuffer(Integer.MAX_VALUE);
+		rewardsService.calculateRewards(user);
+		assertEquals(2, user.getUserRewards().size());
+		rewardsService.recalculateAllRewards(user);
+		assertEquals(attractions.size(), user.getUserRewards().size());
+		rewardsService.shutdown();
+	}
+
+	@Test
+	public void failedRewardsCalculationIsRetried() {
+		AtomicInteger nbAppels = new AtomicInteger();
+		RewardCentral rewardCentral = new RewardCentral() {
+			@Override
+			public int getAttractionRewardPoints(UUID attractionId, UUID userId) {
+				if (nbAppels.incrementAndGet() == 1) {
+					throw new IllegalStateException("RewardCentral unavailable");
+				}
+				return 100;
+			}
+		};
+		GpsUtil gpsUtil = new GpsUtil();
+		RewardsService rewardsService = new RewardsService(gpsUtil, rewardCentral);
+		Attraction attraction = rewardsService.getAttractionCatalog().getSnapshot().getAttractions().get(0);
+
+		User user = new User(UUID.randomUUID(), "jon", "000", "jon@tourGuide.com");
+		user.addToVisitedLocations(new VisitedLocation(user.getUserId(), attraction, new Date()));
+		rewardsService.calculateRewards(user);
+		assertEquals(0, user.getUserRewards().size());
+		// l'endroit n'a pas été évalué : la marque n'a pas avancé
+		assertEquals(0, user.getRewardsWatermark());
+
+		// le calcul suivant réévalue l'endroit sans recalcul complet
+		rewardsService.calculateRewards(user);
+		assertEquals(1, user.getUserRewards().size());
+		assertEquals(1, user.getRewardsWatermark());
+		rewardsService.shutdown();
+	}
+
+	@Test
+	public void userRewardStoreAddsEachAttractionOnce() throws InterruptedException, ExecutionException {
+		GpsUtil gpsUtil = new GpsUtil();
+		List<Attraction> attractions = gpsUtil.getAttractions();
+		User user = new User(UUID.randomUUID(), "jon", "000", "jon@tourGuide.com");
+		VisitedLocation visitedLocation = new VisitedLocation(user.getUserId(), attractions.get(0), new Date());
+
+		// 8 threads ajoutent en même temps une récompense pour chaque attraction : une seule récompense par attraction
+		ExecutorService executorService = Executors.newFixedThreadPool(8);
+		AtomicInteger nbAjouts = new AtomicInteger();
+		List<Future<?>> futures = new ArrayList<>();
+		for (int i = 0; i < 8; i++) {
+			futures.add(executorService.submit(() -> attractions.forEach(attraction -> {
+				if (user.addUserReward(new UserReward(visitedLocation, attraction, 10))) {
+					nbAjouts.incrementAndGet();
+				}
+			})));
+		}
+		for (Future<?> future : futures) {
+			future.get();
+		}
+		executorService.shutdown();
+
+		assertEquals(attractions.size(), nbAjouts.get());
+		assertEquals(attractions.size(), user.getUserRewards().size());
+		assertEquals(10L * attractions.size(), user.getRewardStore().getTotalRewardPoints());
+		assertTrue(user.getRewardStore().contains(attractions.get(3).attractionId));
+		assertFalse(user.addUserReward(new UserReward(visitedLocation, attractions.get(3), 10)));
+		// la liste est une photographie : elle ne change pas quand une récompense est ajoutée ensuite
+		List<UserReward> avant = user.getUserRewards();
+		user.addUserReward(new UserReward(visitedLocation, new Attraction("Nouvelle", "Ville", "CA", 0, 0), 5));
+		assertEquals(attractions.size(), avant.size());
+		assertEquals("Nouvelle", user.getUserRewards().get(attractions.size()).attraction.attractionName);
+	}
+
+	@Test
+	public void rewardPointsCache() throws InterruptedException, ExecutionException {
+		AtomicInteger nbAppels = new AtomicInteger();
+		RewardCentral rewardCentral = new RewardCentral() {
+			@Override
+			public int getAttractionRewardPoints(UUID attractionId, UUID userId) {
+				nbAppels.incrementAndGet();
+				return 100;
+			}
+		};
+		RewardPointsCache rewardPointsCache = new RewardPointsCache(rewardCentral, TimeUnit.MINUTES.toMillis(1), 10);
+		UUID attractionId = UUID.randomUUID();
+		UUID userId = UUID.randomUUID();
+
+		// plusieurs demandes simultanées pour le même couple : un seul appel à RewardCentral
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		List<Future<Integer>> points = new ArrayList<>();
+		for (int i = 0; i < 8; i++) {
+			points.add(executor.submit(() -> rewardPointsCache.getAttractionRewardPoints(attractionId, userId)));
+		}
+		for (Future<Integer> point : points) {
+			assertEquals(points.get(0).get(), point.get());
+		}
+		executor.shutdown();
+		assertEquals(1, nbAppels.get());
+		assertEquals(1, rewardPointsCache.getMissCount());
+		assertEquals(7, rewardPointsCache.getHitCount() + rewardPointsCache.getInFlightJoinCount());
+
+		// la taille du cache reste bornée
+		for (int i = 0; i < 50; i++) {
+			rewardPointsCache.getAttractionRewardPoints(UUID.randomUUID(), userId);
+		}
+		assertTrue(rewardPointsCache.size() <= 10);
+		assertTrue(rewardPointsCache.getEvictionCount() > 0);
+	}
+
+	@Test
+	public void rewardPointsCacheCompletesEntryAfterError() {
+		AtomicInteger nbAppels = new AtomicInteger();
+		RewardCentral rewardCentral = new RewardCentral() {
+			@Override
+			public int getAttractionRewardPoints(UUID attractionId, UUID userId) {
+				if (nbAppels.incrementAndGet() == 1) {
+					throw new AssertionError("RewardCentral failure");
+				}
+				return 100;
+			}
+		};
+		RewardPointsCache rewardPointsCache = new RewardPointsCache(rewardCentral, TimeUnit.MINUTES.toMillis(1), 10);
+		UUID attractionId = UUID.randomUUID();
+		UUID userId = UUID.randomUUID();
+
+		assertThrows(AssertionError.class, () -> rewardPointsCache.getAttractionRewardPoints(attractionId, userId));
+		// l'erreur n'est pas gardée en cache et l'entrée ne reste pas en attente : l'appel suivant ne bloque pas
+		assertEquals(100, assertTimeoutPreemptively(Duration.ofSeconds(5), () -> rewardPointsCache.getAttractionRewardPoints(attractionId, userId)));
+		assertEquals(2, nbAppels.get());
+	}
+
+	@Test
+	public void rewardPointsCacheEvictsOldestEntries() throws InterruptedException {
+		AtomicInteger nbAppels = new AtomicInteger();
+		RewardCentral rewardCentral = new RewardCentral() {
+			@Override
+			public int getAttractionRewardPoints(UUID attractionId, UUID userId) {
+				nbAppels.incrementAndGet();
+				return 100;
+			}
+		};
+		RewardPointsCache rewardPointsCache = new RewardPointsCache(rewardCentral, TimeUnit.MINUTES.toMillis(1), 10);
+		UUID userId = UUID.randomUUID();
+		List<UUID> attractionIds = new ArrayList<>();
+		for (int i = 0; i < 11; i++) {
+			attractionIds.add(UUID.randomUUID());
+			rewardPointsCache.getAttractionRewardPoints(attractionIds.get(i), userId);
+			TimeUnit.MILLISECONDS.sleep(2);
+		}
+		// 11 entrées pour 10 places : on redescend à 9 en retirant les 2 plus anciennes
+		assertEquals(9, rewardPointsCache.size());
+		assertEquals(2, rewardPointsCache.getEvictionCount());
+		for (int i = 2; i < 11; i++) {
+			rewardPointsCache.getAttractionRewardPoints(attractionIds.get(i), userId);
+		}
+		assertEquals(11, nbAppels.get());
+		rewardPointsCache.getAttractionRewardPoints(attractionIds.get(0), userId);
+		assertEquals(12, nbAppels.get());
 	}
 
 	@Test
@@ -44,9 +242,106 @@ public class TestRewardsService {
 		RewardsService rewardsService = new RewardsService(gpsUtil, new RewardCentral());
 		Attraction attraction = gpsUtil.getAttractions().get(0);
 		assertTrue(rewardsService.isWithinAttractionProximity(attraction, attraction));
+		rewardsService.shutdown();
+	}
+
+	@Test
+	public void spatialIndexMatchesBruteForce() {
+		GpsUtil gpsUtil = new GpsUtil();
+		List<Attraction> attractions = gpsUtil.getAttractions();
+		AttractionSpatialIndex index = new AttractionSpatialIndex(attractions);
+		Random random = new Random(42);
+		for (int i = 0; i < 20000; i++) {
+			// une position sur deux est tirée autour d'une attraction pour tester le bord du rayon
+			Attraction near = attractions.get(random.nextInt(attractions.size()));
+			Location location = i % 2 == 0
+					? new Location(-90 + random.nextDouble() * 180, -180 + random.nextDouble() * 360)
+					: new Location(near.latitude + random.nextGaussian() * 0.3, near.longitude + random.nextGaussian() * 0.3);
+			double range = new double[] { 0, 1, 10, 200, 5000 }[i % 5];
+			List<Attraction> expected = attractions.stream()
+					.filter(a -> RewardsService.getDistance(a, location) <= range).toList();
+			List<Attraction> actual = index.findCandidates(location, range).stream()
+					.filter(a -> RewardsService.getDistance(a, location) <= range).toList();
+			assertEquals(expected, actual);
+		}
+	}
+
+	@Test
+	public void distanceKernelMatchesGetDistance() {
+		GpsUtil gpsUtil = new GpsUtil();
+		RewardsService rewardsService = new RewardsService(gpsUtil, new RewardCentral());
+		List<Attraction> attractions = gpsUtil.getAttractions();
+		AttractionDistanceKernel kernel = new AttractionDistanceKernel(attractions);
+		AttractionSpatialIndex index = new AttractionSpatialIndex(attractions);
+		Random random = new Random(7);
+		for (int i = 0; i < 20000; i++) {
+			Attraction near = attractions.get(random.nextInt(attractions.size()));
+			Location location = i % 2 == 0
+					? new Location(-90 + random.nextDouble() * 180, -180 + random.nextDouble() * 360)
+					: new Location(near.latitude + random.nextGaussian() * 0.3, near.longitude + random.nextGaussian() * 0.3);
+			AttractionDistanceKernel.Point point = AttractionDistanceKernel.toPoint(location);
+			for (int a = 0; a < attractions.size(); a++) {
+				double reference = RewardsService.getDistance(attractions.get(a), location);
+				assertEquals(reference, kernel.getDistance(a, point), 1e-3);
+			}
+			// exactement le même résultat que le calcul de référence
+			int range = new int[] { 0, 1, 10, 200, 5000 }[i % 5];
+			rewardsService.setProximityBuffer(range);
+			VisitedLocation visitedLocation = new VisitedLocation(UUID.randomUUID(), location, new Date());
+			List<Attraction> within = index.findWithinRange(location, range);
+			for (Attraction attraction : attractions) {
+				assertEquals(rewardsService.nearAttraction(visitedLocation, attraction), within.contains(attraction));
+			}
+		}
+		rewardsService.shutdown();
+	}
+
+	@Test
+	public void distanceKernelMatchesGetDistanceOnRangeBoundary() {
+		GpsUtil gpsUtil = new GpsUtil();
+		RewardsService rewardsService = new RewardsService(gpsUtil, new RewardCentral());
+		List<Attraction> attractions = gpsUtil.getAttractions();
+		AttractionSpatialIndex index = new AttractionSpatialIndex(attractions);
+		Random random = new Random(11);
+		int nbInside = 0;
+		int nbOutside = 0;
+		for (int i = 0; i < 20000; i++) {
+			// position à une distance de l'attraction égale au rayon, à quelques arrondis près, dans une direction au hasard
+			Attraction attraction = attractions.get(random.nextInt(attractions.size()));
+			int range = new int[] { 0, 1, 10, 200 }[i % 4];
+			double bearing = random.nextDouble() * 2 * Math.PI;
+			double offsetDegrees = range / AttractionDistanceKernel.STATUTE_MILES_PER_DEGREE + (random.nextDouble() - 0.5) * 1e-9;
+			double latitude = attraction.latitude + offsetDegrees * Math.cos(bearing);
+			double longitude = attraction.longitude + offsetDegrees * Math.sin(bearing) / Math.cos(Math.toRadians(latitude));
+			Location location = new Location(latitude, longitude);
+			rewardsService.setProximityBuffer(range);
+			boolean expected = rewardsService.nearAttraction(new VisitedLocation(UUID.randomUUID(), location, new Date()), attraction);
+			assertEquals(expected, index.findWithinRange(location, range).contains(attraction));
+			if (expected) {
+				nbInside++;
+			} else {
+				nbOutside++;
+			}
+		}
+		// les deux côtés du bord sont bien testés
+		assertTrue(nbInside > 0);
+		assertTrue(nbOutside > 0);
+		rewardsService.shutdown();
+	}
+
+	@Test
+	public void attractionCatalogRefreshKeepsSnapshot() {
+		GpsUtil gpsUtil = new GpsUtil();
+		AttractionCatalog attractionCatalog = new AttractionCatalog(gpsUtil);
+		AttractionSnapshot snapshot = attractionCatalog.getSnapshot();
+
+		AttractionSnapshot refreshed = attractionCatalog.refresh();
+
+		assertEquals(gpsUtil.getAttractions().size(), snapshot.size());
+		assertSame(snapshot, refreshed);
+		assertEquals(1, refreshed.getVersion());
 	}
 
-	
 	@Test
 	public void nearAllAttractions() {
 		GpsUtil gpsUtil = new GpsUtil();
@@ -62,6 +357,7 @@ public class TestRewardsService {
 		tourGuideService.tracker.stopTracking();
 
 		assertEquals(gpsUtil.getAttractions().size(), userRewards.size());
+		rewardsService.shutdown();
 	}
 
 }
@@ -0,0 +1,189 @@
+package com.openclassrooms.tourguide;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import gpsUtil.GpsUtil;
+import gpsUtil.location.Attraction;
+import gpsUtil.location.VisitedLocation;
+import rewardCentral.RewardCentral;
+import com.openclassrooms.tourguide.helper.InternalTestHelper;
+import com.openclassrooms.tourguide.helper.InternalUserGenerator;
+import com.openclassrooms.tourguide.service.RewardsService;
+import com.openclassrooms.tourguide.service.TourGuideService;
+import com.openclassrooms.tourguide.user.User;
+
+/**
+ * suite de montée en charge : là où TestPerformance vérifie un seul point (100 000 utilisateurs en 15 / 20 minutes),
+ * cette suite mesure le suivi des positions et le calcul des récompenses pour plusieurs nombres d'utilisateurs
+ * et plusieurs longueurs d'historique, pour voir à partir d'où le coût ne croît plus linéairement.
+ * Pour chaque combinaison et chaque phase (tracking, rewards), une ligne CSV donne : durée, débit (utilisateurs / s),
+ * pic de mémoire heap (échantillonné toutes les 20 ms), temps et nombre de pauses GC, pic du nombre de threads.
+ * Les historiques ne sont pas bornés (la rétention de VisitedLocationLog, tourguide.history.max-entries, est désactivée par défaut).
+ *
+ * Désactivée par défaut, elle se lance avec :
+ *
+ * mvn test -Dtest=TestScalability -Dtourguide.scalability=true
+ *
+ * Options (propriétés système) :
+ * tourguide.scalability.users (1000,10000,100000 ; jusqu'à 1000000), tourguide.scalability.history (3,100),
+ * tourguide.scalability.report (target/scalability/scalability-<date>.csv), tourguide.scalability.timeout-minutes (60)
+ */
+@EnabledIfSystemProperty(named = "tourguide.scalability", matches = "true")
+public class TestScalability {
+	private static final long SEED = 42;
+	private static final String CSV_HEADER = "users,history,phase,seconds,users_per_second,heap_peak_mb,gc_pause_ms,gc_count,peak_threads";
+
+	private static Path report;
+
+	@BeforeAll
+	public static void createReport() throws IOException {
+		report = Path.of(System.getProperty("tourguide.scalability.report",
+				"target/scalability/scalability-" + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss")) + ".csv"));
+		if (report.toAbsolutePath().getParent() != null) {
+			Files.createDirectories(report.toAbsolutePath().getParent());
+		}
+		Files.writeString(report, CSV_HEADER + System.lineSeparator());
+		System.out.println("Scalability report written to " + report.toAbsolutePath());
+	}
+
+	static Stream<Arguments> scenarios() {
+		List<Arguments> scenarios = new ArrayList<>();
+		for (int nbUsers : parseInts(System.getProperty("tourguide.scalability.users", "1000,10000,100000"))) {
+			for (int historySize : parseInts(System.getProperty("tourguide.scalability.history", "3,100"))) {
+				scenarios.add(Arguments.of(nbUsers, historySize));
+			}
+		}
+		return scenarios.stream();
+	}
+
+	@ParameterizedTest(name = "{0} users, {1} visited locations")
+	@MethodSource("scenarios")
+	public void trackingAndRewards(int nbUsers, int historySize) throws Exception {
+		long timeoutMinutes = Long.getLong("tourguide.scalability.timeout-minutes", 60);
+		GpsUtil gpsUtil = new GpsUtil();
+		RewardsService rewardsService = new RewardsService(gpsUtil, new RewardCentral());
+		InternalTestHelper.setInternalUserNumber(0);
+		TourGuideService tourGuideService = new TourGuideService(gpsUtil, rewardsService);
+		tourGuideService.tracker.stopTracking();
+		new InternalUserGenerator(SEED, System.currentTimeMillis(), historySize).generate(nbUsers, tourGuideService::addUser);
+		List<User> allUsers = tourGuideService.getAllUsers();
+
+		try {
+			// suivi des positions (avec le calcul des récompenses des nouvelles positions qu'il déclenche)
+			measure(nbUsers, historySize, "tracking", () -> {
+				allUsers.forEach(tourGuideService::getUserLocationAsync);
+				allUsers.forEach(user -> assertTrue(tourGuideService.awaitLocation(user, timeoutMinutes, TimeUnit.MINUTES)));
+				allUsers.forEach(user -> assertTrue(rewardsService.awaitRewards(user, timeoutMinutes, TimeUnit.MINUTES)));
+			});
+			// comme TestPerformance : chaque utilisateur visite une attraction (au moins une récompense à demander à RewardCentral),
+			// puis ses récompenses sont recalculées sur tout son historique
+			Attraction attraction = gpsUtil.getAttractions().get(0);
+			allUsers.forEach(user -> user.addToVisitedLocations(new VisitedLocation(user.getUserId(), attraction, new Date())));
+			measure(nbUsers, historySize, "rewards", () -> {
+				allUsers.forEach(rewardsService::recalculateAllRewards);
+				allUsers.forEach(user -> assertTrue(rewardsService.awaitRewards(user, timeoutMinutes, TimeUnit.MINUTES)));
+			});
+		} finally {
+			tourGuideService.shutdown();
+			rewardsService.shutdown();
+		}
+	}
+
+	/**
+	 * exécute une phase et ajoute sa ligne au rapport CSV
+	 */
+	private static void measure(int nbUsers, int historySize, String phase, Runnable run) throws IOException {
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		System.gc();
+		threads.resetPeakThreadCount();
+		long gcTimeBefore = gcPauseMillis();
+		long gcCountBefore = gcPauseCount();
+		HeapSampler heapSampler = new HeapSampler(memory);
+		heapSampler.start();
+
+		long start = System.nanoTime();
+		try {
+			run.run();
+		} finally {
+			heapSampler.interrupt();
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		String line = String.format(Locale.US, "%d,%d,%s,%.3f,%.1f,%.1f,%d,%d,%d", nbUsers, historySize, phase, seconds, nbUsers / seconds,
+				heapSampler.peakBytes / (1024.0 * 1024.0), gcPauseMillis() - gcTimeBefore, gcPauseCount() - gcCountBefore,
+				threads.getPeakThreadCount());
+		try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(report, StandardOpenOption.APPEND))) {
+			out.println(line);
+		}
+		System.out.println(CSV_HEADER + System.lineSeparator() + line);
+	}
+
+	// les collecteurs "Concurrent" (cycles de G1 en parallèle de l'application) ne sont pas des pauses
+	private static Stream<GarbageCollectorMXBean> pauseCollectors() {
+		return ManagementFactory.getGarbageCollectorMXBeans().stream().filter(gc -> !gc.getName().contains("Concurrent"));
+	}
+
+	private static long gcPauseMillis() {
+		return pauseCollectors().mapToLong(GarbageCollectorMXBean::getCollectionTime).sum();
+	}
+
+	private static long gcPauseCount() {
+		return pauseCollectors().mapToLong(GarbageCollectorMXBean::getCollectionCount).sum();
+	}
+
+	private static int[] parseInts(String values) {
+		return Arrays.stream(values.split(",")).map(String::trim).mapToInt(Integer::parseInt).toArray();
+	}
+
+	/**
+	 * relève le pic de mémoire heap utilisée toutes les 20 ms pendant une phase
+	 */
+	private static final class HeapSampler extends Thread {
+		private final MemoryMXBean memory;
+		private volatile long peakBytes;
+
+		private HeapSampler(MemoryMXBean memory) {
+			super("heap-sampler");
+			this.memory = memory;
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			while (!isInterrupted()) {
+				peakBytes = Math.max(peakBytes, memory.getHeapMemoryUsage().getUsed());
+				try {
+					Thread.sleep(20);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,132 @@
+package com.openclassrooms.tourguide;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import com.openclassrooms.tourguide.helper.InternalTestHelper;
+import com.openclassrooms.tourguide.service.TourGuideService;
+import com.openclassrooms.tourguide.user.User;
+import com.openclassrooms.tourguide.user.UserReward;
+
+import gpsUtil.location.Attraction;
+import gpsUtil.location.Location;
+import gpsUtil.location.VisitedLocation;
+
+@SpringBootTest
+@AutoConfigureMockMvc
+public class TestTourGuideController {
+
+	static {
+		// le contexte Spring génère les utilisateurs internes à son démarrage
+		InternalTestHelper.setInternalUserNumber(10);
+	}
+
+	@Autowired
+	MockMvc mockMvc;
+
+	@Autowired
+	TourGuideService tourGuideService;
+
+	@Autowired
+	ObjectMapper objectMapper;
+
+	@BeforeEach
+	public void stopTracker() {
+		// les positions ne doivent pas changer pendant les tests
+		tourGuideService.tracker.stopTracking();
+	}
+
+	@Test
+	public void getAllCurrentLocations() throws Exception {
+		User user = new User(UUID.randomUUID(), "jon", "000", "jon@tourGuide.com");
+		user.addToVisitedLocations(new VisitedLocation(user.getUserId(), new Location(33.817595, -117.922008), new Date()));
+		tourGuideService.addUser(user);
+		User userWithoutLocation = new User(UUID.randomUUID(), "jon2", "000", "jon2@tourGuide.com");
+		tourGuideService.addUser(userWithoutLocation);
+
+		JsonNode locations = objectMapper.readTree(perform("/getAllCurrentLocations", MediaType.APPLICATION_JSON));
+
+		// un champ par utilisateur ayant une position, la clé est son userId
+		long nbUsersWithLocation = tourGuideService.getAllUsers().stream().filter(u -> u.getLastVisitedLocation() != null).count();
+		assertEquals(nbUsersWithLocation, locations.size());
+		assertFalse(locations.has(userWithoutLocation.getUserId().toString()));
+		JsonNode location = locations.get(user.getUserId().toString());
+		assertEquals(-117.922008, location.get("longitude").asDouble());
+		assertEquals(33.817595, location.get("latitude").asDouble());
+		for (User u : tourGuideService.getAllUsers()) {
+			VisitedLocation lastVisitedLocation = u.getLastVisitedLocation();
+			if (lastVisitedLocation != null) {
+				JsonNode node = locations.get(u.getUserId().toString());
+				assertEquals(lastVisitedLocation.location.longitude, node.get("longitude").asDouble());
+				assertEquals(lastVisitedLocation.location.latitude, node.get("latitude").asDouble());
+			}
+		}
+	}
+
+	@Test
+	public void getRewardsForUsers() throws Exception {
+		User user = new User(UUID.randomUUID(), "jonRewards", "000", "jonRewards@tourGuide.com");
+		Attraction attraction = new Attraction("Disneyland", "Anaheim", "CA", 33.817595, -117.922008);
+		VisitedLocation visitedLocation = new VisitedLocation(user.getUserId(), attraction, new Date());
+		user.addToVisitedLocations(visitedLocation);
+		user.addUserReward(new UserReward(visitedLocation, attraction, 42));
+		tourGuideService.addUser(user);
+		User internalUser = tourGuideService.getAllUsers().stream()
+				.filter(u -> u.getUserName().startsWith("internalUser")).findFirst().orElseThrow();
+
+		String body = perform("/getRewardsForUsers?userNames=" + user.getUserName() + ",unknownUser," + internalUser.getUserName(),
+				TourGuideController.APPLICATION_NDJSON);
+
+		// une ligne Json par utilisateur connu, dans l'ordre de la requête, le nom inconnu est ignoré
+		List<String> lines = body.lines().toList();
+		assertEquals(2, lines.size());
+		JsonNode first = objectMapper.readTree(lines.get(0));
+		assertEquals(user.getUserName(), first.get("userName").asText());
+		assertEquals(user.getUserId().toString(), first.get("userId").asText());
+		assertEquals(1, first.get("rewards").size());
+		assertEquals(42, first.get("rewards").get(0).get("rewardPoints").asInt());
+		assertEquals("Disneyland", first.get("rewards").get(0).get("attraction").get("attractionName").asText());
+		JsonNode second = objectMapper.readTree(lines.get(1));
+		assertEquals(internalUser.getUserName(), second.get("userName").asText());
+		assertEquals(internalUser.getUserId().toString(), second.get("userId").asText());
+		assertTrue(second.get("rewards").isArray());
+		assertEquals(internalUser.getUserRewards().size(), second.get("rewards").size());
+	}
+
+	/**
+	 * appelle un endpoint dont la réponse est écrite au fil de l'eau (StreamingResponseBody, donc asynchrone) et retourne le corps
+	 * @param url
+	 * @param contentType
+	 * @return
+	 * @throws Exception
+	 */
+	private String perform(String url, MediaType contentType) throws Exception {
+		MvcResult started = mockMvc.perform(get(url)).andExpect(request().asyncStarted()).andReturn();
+		return mockMvc.perform(asyncDispatch(started))
+				.andExpect(status().isOk())
+				.andExpect(content().contentTypeCompatibleWith(contentType))
+				.andReturn().getResponse().getContentAsString();
+	}
+}
@@ -1,23 +1,65 @@
 package com.openclassrooms.tourguide;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.Spliterator;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.jupiter.api.Test;
 
 import gpsUtil.GpsUtil;
 import gpsUtil.location.Attraction;
+import gpsUtil.location.Location;
 import gpsUtil.location.VisitedLocation;
 import rewardCentral.RewardCentral;
+import com.openclassrooms.tourguide.attraction.AttractionCatalog;
+import com.openclassrooms.tourguide.attraction.AttractionDistanceKernel;
+import com.openclassrooms.tourguide.concurrent.ExecutionMode;
+import com.openclassrooms.tourguide.concurrent.ExternalCallLimiter;
+import com.openclassrooms.tourguide.concurrent.InFlightRegistry;
+import com.openclassrooms.tourguide.concurrent.RejectionPolicy;
+import com.openclassrooms.tourguide.concurrent.TourGuideExecutors;
 import com.openclassrooms.tourguide.helper.InternalTestHelper;
+import com.openclassrooms.tourguide.helper.InternalUserGenerator;
+import com.openclassrooms.tourguide.metrics.TourGuideMeterBinder;
+import com.openclassrooms.tourguide.service.RewardPointsCache;
 import com.openclassrooms.tourguide.service.RewardsService;
 import com.openclassrooms.tourguide.service.TourGuideService;
+import com.openclassrooms.tourguide.service.TripDealCache;
 import com.openclassrooms.tourguide.user.User;
+import com.openclassrooms.tourguide.user.UserPositionStore;
+import com.openclassrooms.tourguide.user.UserPreferences;
+import com.openclassrooms.tourguide.user.UserRegistry;
+import com.openclassrooms.tourguide.user.UserReward;
+import com.openclassrooms.tourguide.user.VisitedLocationLog;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import tripPricer.Provider;
+import tripPricer.TripPricer;
 
 public class TestTourGuideService {
 
@@ -32,6 +74,7 @@ public class TestTourGuideService {
 		VisitedLocation visitedLocation = tourGuideService.trackUserLocation(user);
 		tourGuideService.tracker.stopTracking();
 		assertTrue(visitedLocation.userId.equals(user.getUserId()));
+		rewardsService.shutdown();
 	}
 
 	@Test
@@ -54,6 +97,7 @@ public class TestTourGuideService {
 
 		assertEquals(user, retrivedUser);
 		assertEquals(user2, retrivedUser2);
+		rewardsService.shutdown();
 	}
 
 	@Test
@@ -75,6 +119,7 @@ public class TestTourGuideService {
 
 		assertTrue(allUsers.contains(user));
 		assertTrue(allUsers.contains(user2));
+		rewardsService.shutdown();
 	}
 
 	@Test
@@ -90,9 +135,332 @@ public class TestTourGuideService {
 		tourGuideService.tracker.stopTracking();
 
 		assertEquals(user.getUserId(), visitedLocation.userId);
+		rewardsService.shutdown();
+	}
+
+
+	@Test
+	public void userPositionStoreCountsUsersNearby() {
+		GpsUtil gpsUtil = new GpsUtil();
+		RewardsService rewardsService = new RewardsService(gpsUtil, new RewardCentral());
+		InternalTestHelper.setInternalUserNumber(200);
+		TourGuideService tourGuideService = new TourGuideService(gpsUtil, rewardsService);
+		tourGuideService.tracker.stopTracking();
+
+		// le parcours en colonnes donne le même résultat que le calcul de distance utilisateur par utilisateur
+		Attraction attraction = gpsUtil.getAttractions().get(0);
+		double rangeMiles = 3000;
+		long attendu = tourGuideService.getAllUsers().stream()
+				.filter(u -> rewardsService.getDistance(attraction, u.getLastVisitedLocation().location) <= rangeMiles).count();
+		assertEquals(200, tourGuideService.getUserPositionStore().size());
+		assertEquals(attendu, tourGuideService.countUsersNear(attraction, rangeMiles));
+
+		// une nouvelle position remplace la précédente, et les tableaux s'agrandissent au delà de leur capacité initiale
+		UserPositionStore store = new UserPositionStore();
+		UUID userId = UUID.randomUUID();
+		store.update(userId, new VisitedLocation(userId, new Location(10, 10), new Date()));
+		store.update(userId, new VisitedLocation(userId, new Location(attraction.latitude, attraction.longitude), new Date()));
+		for (int i = 0; i < 3000; i++) {
+			UUID autre = UUID.randomUUID();
+			store.update(autre, new VisitedLocation(autre, new Location(-attraction.latitude, attraction.longitude + 180), new Date()));
+		}
+		assertEquals(3001, store.size());
+		assertEquals(0, store.ordinalOf(userId));
+		assertEquals(attraction.latitude, store.getLocation(0).latitude);
+		assertEquals(List.of(userId), store.findWithin(attraction, 1));
+		assertEquals(1, store.countWithin(attraction, 1));
+
+		// une position retirée n'est plus vue par les parcours, et sa case est réattribuée
+		store.remove(userId);
+		assertEquals(-1, store.ordinalOf(userId));
+		assertEquals(0, store.countWithin(attraction, 1));
+		UUID nouveau = UUID.randomUUID();
+		assertEquals(0, store.update(nouveau, new VisitedLocation(nouveau, new Location(attraction.latitude, attraction.longitude), new Date())));
+		assertEquals(List.of(nouveau), store.findWithin(attraction, 1));
+		assertEquals(3001, store.size());
+		rewardsService.shutdown();
+	}
+
+	@Test
+	public void userPositionStoreMatchesGetDistanceOnRangeBoundary() {
+		Location center = new Location(33.817595, -117.922008);
+		Random random = new Random(11);
+		for (int range : new int[] { 0, 1, 10, 200 }) {
+			// positions à une distance du centre égale au rayon, à quelques arrondis près, dans une direction au hasard
+			UserPositionStore store = new UserPositionStore();
+			Set<UUID> attendus = new HashSet<>();
+			for (int i = 0; i < 5000; i++) {
+				double bearing = random.nextDouble() * 2 * Math.PI;
+				double offsetDegrees = range / AttractionDistanceKernel.STATUTE_MILES_PER_DEGREE + (random.nextDouble() - 0.5) * 1e-9;
+				double latitude = center.latitude + offsetDegrees * Math.cos(bearing);
+				double longitude = center.longitude + offsetDegrees * Math.sin(bearing) / Math.cos(Math.toRadians(latitude));
+				UUID userId = UUID.randomUUID();
+				Location location = new Location(latitude, longitude);
+				store.update(userId, new VisitedLocation(userId, location, new Date()));
+				if (!(RewardsService.getDistance(center, location) > range)) {
+					attendus.add(userId);
+				}
+			}
+			// le résultat est exactement celui du calcul de référence, des deux côtés du bord
+			assertEquals(attendus.size(), store.countWithin(center, range));
+			assertEquals(attendus, new HashSet<>(store.findWithin(center, range)));
+		}
+	}
+
+	@Test
+	public void usersSnapshotSurvivesRestart() throws Exception {
+		GpsUtil gpsUtil = new GpsUtil();
+		RewardsService rewardsService = new RewardsService(gpsUtil, new RewardCentral());
+		InternalTestHelper.setInternalUserNumber(0);
+		TourGuideService tourGuideService = new TourGuideService(gpsUtil, rewardsService);
+		tourGuideService.tracker.stopTracking();
+
+		User user = new User(UUID.randomUUID(), "jon", "000", "jon@tourGuide.com");
+		UserPreferences preferences = new UserPreferences();
+		preferences.setNumberOfChildren(2);
+		user.setUserPreferences(preferences);
+		Attraction attraction = gpsUtil.getAttractions().get(0);
+		user.addToVisitedLocations(new VisitedLocation(user.getUserId(), attraction, new Date()));
+		tourGuideService.addUser(user);
+		rewardsService.calculateRewards(user);
+		assertEquals(1, user.getUserRewards().size());
+
+		Path path = Files.createTempFile("users", ".snapshot");
+		try {
+			assertEquals(1, tourGuideService.saveUsersSnapshot(path));
+
+			// "redémarrage" : un nouveau service relit la photographie au lieu de générer des utilisateurs
+			InternalTestHelper.setInternalUserNumber(10);
+			TourGuideService restarted = new TourGuideService(gpsUtil, rewardsService, path.toString());
+			restarted.tracker.stopTracking();
+			User restored = restarted.getUser("jon");
+
+			assertEquals(1, restarted.getAllUsers().size());
+			assertEquals(user.getUserId(), restored.getUserId());
+			assertEquals("jon@tourGuide.com", restored.getEmailAddress());
+			assertEquals(2, restored.getUserPreferences().getNumberOfChildren());
+			assertEquals(attraction.latitude, restored.getLastVisitedLocation().location.latitude);
+			assertEquals(1, restored.getUserRewards().size());
+			assertEquals(attraction.attractionName, restored.getUserRewards().get(0).attraction.attractionName);
+			// l'endroit visité a déjà été évalué : pas de nouvelle récompense ni de récompense en double
+			assertEquals(restored.getVisitedLocationLog().getNextSequence(), restored.getRewardsWatermark());
+			assertEquals(1, restarted.countUsersNear(attraction, 1));
+
+			// un utilisateur de même nom remplacé par la photographie ne garde pas sa position dans les recherches
+			User homonyme = new User(UUID.randomUUID(), "jon", "000", "jon@tourGuide.com");
+			Location ailleurs = new Location(-attraction.latitude, attraction.longitude + 180);
+			homonyme.addToVisitedLocations(new VisitedLocation(homonyme.getUserId(), ailleurs, new Date()));
+			TourGuideService other = new TourGuideService(gpsUtil, rewardsService);
+			other.tracker.stopTracking();
+			other.addUser(homonyme);
+			assertEquals(1, other.restoreUsersSnapshot(path));
+			assertEquals(user.getUserId(), other.getUser("jon").getUserId());
+			assertEquals(0, other.getUserPositionStore().findWithin(ailleurs, 1).size());
+			assertEquals(1, other.countUsersNear(attraction, 1));
+
+			// photographie corrompue (nombre d'utilisateurs impossible) : les utilisateurs sont générés à la place
+			try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+				channel.write(ByteBuffer.allocate(4).putInt(Integer.MAX_VALUE).flip(), 16);
+			}
+			TourGuideService fallback = new TourGuideService(gpsUtil, rewardsService, path.toString());
+			fallback.tracker.stopTracking();
+			assertEquals(10, fallback.getAllUsers().size());
+			assertEquals(10, fallback.getUserPositionStore().size());
+		} finally {
+			Files.deleteIfExists(path);
+		}
+		rewardsService.shutdown();
+	}
+
+	@Test
+	public void internalUsersGenerationIsReproducible() throws Exception {
+		InternalUserGenerator generator = new InternalUserGenerator(42, 0);
+		User user = generator.generate(7);
+		User memeUser = new InternalUserGenerator(42, 0).generate(7);
+		assertEquals("internalUser7", user.getUserName());
+		assertEquals(user.getUserId(), memeUser.getUserId());
+		assertEquals(user.getLastVisitedLocation().location.latitude, memeUser.getLastVisitedLocation().location.latitude);
+		assertEquals(InternalUserGenerator.HISTORY_SIZE, user.getVisitedLocations().size());
+		assertFalse(user.getUserId().equals(generator.generate(8).getUserId()));
+		assertFalse(user.getUserId().equals(new InternalUserGenerator(43, 0).generate(7).getUserId()));
+
+		// génération en tâche de fond : le service est utilisable tout de suite, les utilisateurs arrivent ensuite
+		GpsUtil gpsUtil = new GpsUtil();
+		RewardsService rewardsService = new RewardsService(gpsUtil, new RewardCentral());
+		InternalTestHelper.setInternalUserNumber(1000);
+		TourGuideService tourGuideService = new TourGuideService(gpsUtil, rewardsService, null, 42L, true);
+		tourGuideService.tracker.stopTracking();
+		tourGuideService.getInternalUsersReady().get(30, TimeUnit.SECONDS);
+
+		assertEquals(1000, tourGuideService.getAllUsers().size());
+		assertEquals(1000, tourGuideService.getUserPositionStore().size());
+		assertEquals(user.getUserId(), tourGuideService.getUser("internalUser7").getUserId());
+		rewardsService.shutdown();
+	}
+
+	@Test
+	public void userRegistryIndexesAndPartitions() {
+		UserRegistry registry = new UserRegistry();
+		for (int i = 0; i < 1000; i++) {
+			registry.addIfAbsent(new User(UUID.randomUUID(), "user" + i, "000", "user" + i + "@tourGuide.com"));
+		}
+		User user = registry.getByUserName("user7");
+		assertEquals(user, registry.getByUserId(user.getUserId()));
+		assertFalse(registry.addIfAbsent(new User(UUID.randomUUID(), "user7", "000", "autre@tourGuide.com")));
+
+		// remplacement d'un utilisateur de même nom : l'ancien identifiant n'est plus indexé
+		User remplacant = new User(UUID.randomUUID(), "user7", "000", "user7@tourGuide.com");
+		registry.put(remplacant);
+		assertEquals(remplacant, registry.getByUserName("user7"));
+		assertEquals(null, registry.getByUserId(user.getUserId()));
+
+		// les parties sont disjointes et couvrent tous les utilisateurs
+		Set<String> vus = new HashSet<>();
+		List<Spliterator<User>> partitions = registry.partitions(4);
+		assertEquals(4, partitions.size());
+		partitions.forEach(partition -> partition.forEachRemaining(u -> assertTrue(vus.add(u.getUserName()))));
+		assertEquals(1000, vus.size());
+
+		// un parcours pendant des ajouts ne lève pas d'exception (il peut voir ou non les utilisateurs ajoutés)
+		int nbParcourus = 0;
+		for (User u : registry) {
+			if (u.getUserName().startsWith("user")) {
+				registry.addIfAbsent(new User(UUID.randomUUID(), "nouveau" + u.getUserName(), "000", "x@tourGuide.com"));
+			}
+			nbParcourus++;
+		}
+		assertTrue(nbParcourus >= 1000);
+		assertEquals(2000, registry.size());
+	}
+
+	@Test
+	public void visitedLocationLogRetention() {
+		UUID userId = UUID.randomUUID();
+		List<VisitedLocation> archives = new ArrayList<>();
+		VisitedLocationLog log = new VisitedLocationLog(new VisitedLocationLog.Retention(50, null), archives::addAll);
+		for (int i = 0; i < 200; i++) {
+			log.append(new VisitedLocation(userId, new Location(i, i), new Date()));
+		}
+
+		List<VisitedLocation> retained = log.snapshot();
+		assertEquals(50, retained.size());
+		assertEquals(150, log.getFirstSequence());
+		assertEquals(200, log.getNextSequence());
+		assertEquals(199.0, log.getLast().location.latitude);
+		assertEquals(150.0, retained.get(0).location.latitude);
+		assertEquals(List.of(), log.entriesBetween(0, 100));
+		assertEquals(retained.subList(10, 20), log.entriesBetween(160, 170));
+		// seuls des blocs entiers sont libérés, transmis à l'archivage dans l'ordre
+		assertTrue(archives.size() >= 100 && archives.size() <= 150);
+		assertEquals(0.0, archives.get(0).location.latitude);
+
+		// rétention par âge : les blocs dont tous les endroits sont trop vieux sont retirés
+		VisitedLocationLog recentLog = new VisitedLocationLog(new VisitedLocationLog.Retention(0, Duration.ofDays(1)), null);
+		Date ilYaDeuxJours = new Date(System.currentTimeMillis() - Duration.ofDays(2).toMillis());
+		for (int i = 0; i < 64; i++) {
+			recentLog.append(new VisitedLocation(userId, new Location(i, i), ilYaDeuxJours));
+		}
+		recentLog.append(new VisitedLocation(userId, new Location(64, 64), new Date()));
+		assertEquals(1, recentLog.size());
+		assertEquals(64.0, recentLog.getLast().location.latitude);
+
+		// par défaut pas de rétention : l'historique est complet
+		VisitedLocationLog fullLog = new VisitedLocationLog();
+		for (int i = 0; i < 2000; i++) {
+			fullLog.append(new VisitedLocation(userId, new Location(0, 0), new Date()));
+		}
+		assertEquals(2000, fullLog.size());
+		assertEquals(0, fullLog.getFirstSequence());
+	}
+
+	@Test
+	public void historyRetentionAppliesToServiceUsers() {
+		GpsUtil gpsUtil = new GpsUtil();
+		RewardsService rewardsService = new RewardsService(gpsUtil, new RewardCentral());
+		InternalTestHelper.setInternalUserNumber(0);
+		TourGuideService tourGuideService = new TourGuideService(gpsUtil, rewardsService);
+		TourGuideService otherService = new TourGuideService(gpsUtil, rewardsService);
+		tourGuideService.tracker.stopTracking();
+		otherService.tracker.stopTracking();
+
+		User before = new User(UUID.randomUUID(), "jon", "000", "jon@tourGuide.com");
+		tourGuideService.addUser(before);
+		VisitedLocationLog.Retention retention = new VisitedLocationLog.Retention(10, null);
+		tourGuideService.setHistoryRetention(retention);
+		User after = new User(UUID.randomUUID(), "jon2", "000", "jon2@tourGuide.com");
+		tourGuideService.addUser(after);
+		User otherUser = new User(UUID.randomUUID(), "jon3", "000", "jon3@tourGuide.com");
+		otherService.addUser(otherUser);
+		for (int i = 0; i < 50; i++) {
+			for (User user : List.of(before, after, otherUser)) {
+				user.addToVisitedLocations(new VisitedLocation(user.getUserId(), new Location(i, i), new Date()));
+			}
+		}
+
+		// la rétention d'un service ne touche que ses propres utilisateurs, déjà enregistrés ou ajoutés ensuite
+		assertEquals(10, before.getVisitedLocations().size());
+		assertEquals(10, after.getVisitedLocations().size());
+		assertEquals(VisitedLocationLog.DEFAULT_RETENTION, otherService.getHistoryRetention());
+		assertEquals(50, otherUser.getVisitedLocations().size());
+		rewardsService.shutdown();
+	}
+
+	@Test
+	public void trackUserAsync() throws Exception {
+		GpsUtil gpsUtil = new GpsUtil();
+		RewardsService rewardsService = new RewardsService(gpsUtil, new RewardCentral());
+		InternalTestHelper.setInternalUserNumber(0);
+		TourGuideService tourGuideService = new TourGuideService(gpsUtil, rewardsService);
+
+		User user = new User(UUID.randomUUID(), "jon", "000", "jon@tourGuide.com");
+		VisitedLocation visitedLocation = tourGuideService.getUserLocationFuture(user).get(10, TimeUnit.SECONDS);
+		// le calcul des récompenses est lancé avant la fin de la mise à jour de la position
+		List<UserReward> userRewards = tourGuideService.getUserRewardsFuture(user).get(10, TimeUnit.SECONDS);
+
+		tourGuideService.tracker.stopTracking();
+
+		assertEquals(user.getUserId(), visitedLocation.userId);
+		assertEquals(user.getUserRewards(), userRewards);
+		rewardsService.shutdown();
+	}
+
+	@Test
+	public void metricsRecordTrackingAndRewards() throws InterruptedException {
+		// les timers sont enregistrés dans le registre global, partagé avec les autres tests
+		SimpleMeterRegistry globalTimers = new SimpleMeterRegistry();
+		Metrics.globalRegistry.add(globalTimers);
+		try {
+			GpsUtil gpsUtil = new GpsUtil();
+			RewardsService rewardsService = new RewardsService(gpsUtil, new RewardCentral());
+			InternalTestHelper.setInternalUserNumber(0);
+			TourGuideService tourGuideService = new TourGuideService(gpsUtil, rewardsService);
+			// les jauges de ce service sont liées à un registre qui lui est propre
+			SimpleMeterRegistry registry = new SimpleMeterRegistry();
+			new TourGuideMeterBinder(tourGuideService).bindTo(registry);
+
+			User user = new User(UUID.randomUUID(), "jon", "000", "jon@tourGuide.com");
+			tourGuideService.trackUserLocation(user);
+			user.getUserRewards();
+			tourGuideService.tracker.stopTracking();
+			rewardsService.shutdown();
+
+			// d'autres services (trackers des autres tests) peuvent aussi enregistrer dans le registre global
+			assertTrue(globalTimers.get("tourguide.gpsutil.latency").timer().count() >= 1);
+			assertTrue(globalTimers.get("tourguide.rewards.calculation").timer().count() >= 1);
+			// la mise à jour est retirée des traitements en cours juste après la fin de son futur : on attend que la jauge retombe
+			long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+			while (registry.get("tourguide.inflight").tag("registry", "location").gauge().value() != 0
+					&& System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			assertEquals(0, registry.get("tourguide.inflight").tag("registry", "location").gauge().value());
+			assertEquals(0, registry.get("tourguide.executor.queue.depth").tag("bulkhead", "tracking").gauge().value());
+			assertEquals(rewardsService.getRewardsGrantedCount(), registry.get("tourguide.rewards.granted").functionCounter().count());
+		} finally {
+			Metrics.globalRegistry.remove(globalTimers);
+		}
 	}
 
-	
 	@Test
 	public void getNearbyAttractions() {
 		GpsUtil gpsUtil = new GpsUtil();
@@ -109,6 +477,128 @@ public class TestTourGuideService {
 		tourGuideService.tracker.stopTracking();
 
 		assertEquals(5, attractions.size());
+		rewardsService.shutdown();
+	}
+
+	@Test
+	public void getNearbyAttractionsMatchesFullSort() {
+		GpsUtil gpsUtil = new GpsUtil();
+		RewardsService rewardsService = new RewardsService(gpsUtil, new RewardCentral());
+		InternalTestHelper.setInternalUserNumber(0);
+		TourGuideService tourGuideService = new TourGuideService(gpsUtil, rewardsService);
+
+		UUID userId = UUID.randomUUID();
+		VisitedLocation visitedLocation = new VisitedLocation(userId, new Location(33.817595, -117.922008), new Date());
+		List<Attraction> allAttractions = tourGuideService.getNearByAttractions(visitedLocation, Integer.MAX_VALUE);
+
+		tourGuideService.tracker.stopTracking();
+
+		for (int k : new int[] { 0, 1, 5, 10, allAttractions.size() }) {
+			List<Attraction> expected = allAttractions.stream()
+					.sorted(Comparator.comparingDouble(a -> RewardsService.getDistance(a, visitedLocation.location)))
+					.limit(k).toList();
+			assertEquals(expected, tourGuideService.getNearByAttractions(visitedLocation, k));
+		}
+		assertEquals(gpsUtil.getAttractions().size(), allAttractions.size());
+		rewardsService.shutdown();
+	}
+
+	@Test
+	public void bulkheadRejectsWhenSaturated() throws InterruptedException {
+		TourGuideExecutors executors = new TourGuideExecutors(ExecutionMode.fromSystemProperty(), 1, 1, 1, RejectionPolicy.ABORT, 5);
+		CountDownLatch release = new CountDownLatch(1);
+		// une tâche en cours + une en attente : la file est pleine
+		executors.tracking().execute(() -> awaitQuietly(release));
+		executors.tracking().execute(() -> awaitQuietly(release));
+
+		assertThrows(RejectedExecutionException.class, () -> executors.tracking().execute(() -> {}));
+		// le bulkhead des récompenses n'est pas impacté
+		CountDownLatch rewardDone = new CountDownLatch(1);
+		executors.rewards().execute(rewardDone::countDown);
+		assertTrue(rewardDone.await(5, TimeUnit.SECONDS));
+
+		release.countDown();
+		executors.shutdown();
+		assertTrue(executors.tracking().isShutdown());
+	}
+
+	@Test
+	public void gpsUtilLimiterFollowsExecutorsConfiguration() {
+		GpsUtil gpsUtil = new GpsUtil();
+		TourGuideExecutors executors = new TourGuideExecutors(ExecutionMode.VIRTUAL_THREADS, 4, 4, 10, RejectionPolicy.CALLER_RUNS, 5, 3);
+		RewardsService rewardsService = new RewardsService(new RewardPointsCache(new RewardCentral()), new AttractionCatalog(gpsUtil), executors);
+		InternalTestHelper.setInternalUserNumber(0);
+		TourGuideService tourGuideService = new TourGuideService(gpsUtil, rewardsService);
+
+		User user = new User(UUID.randomUUID(), "jon", "000", "jon@tourGuide.com");
+		VisitedLocation visitedLocation = tourGuideService.trackUserLocation(user);
+		tourGuideService.tracker.stopTracking();
+		executors.shutdown();
+
+		// même réglage que la limite des appels à RewardCentral, quel que soit le mode d'exécution
+		assertEquals(3, tourGuideService.getGpsUtilLimiter().getMaxConcurrentCalls());
+		assertEquals(user.getUserId(), visitedLocation.userId);
+	}
+
+	@Test
+	public void inFlightRegistryRemovesCompletedEntries() {
+		InFlightRegistry<UUID> registry = new InFlightRegistry<>("test");
+		UUID userId = UUID.randomUUID();
+		CompletableFuture<Void> premier = new CompletableFuture<>();
+		registry.start(userId, enCours -> premier);
+		// le second traitement reçoit le premier encore en cours et s'enchaine derrière
+		CompletableFuture<Void> second = registry.start(userId, enCours -> enCours.thenRun(() -> {}));
+
+		assertTrue(registry.isPending(userId));
+		assertFalse(registry.await(userId, 10, TimeUnit.MILLISECONDS));
+		premier.complete(null);
+		assertTrue(registry.await(userId, 5, TimeUnit.SECONDS));
+		assertTrue(second.isDone());
+		assertFalse(registry.isPending(userId));
+		assertEquals(0, registry.size());
+	}
+
+	@Test
+	public void inFlightRegistryCallsStarterOutsideTheMap() {
+		InFlightRegistry<UUID> registry = new InFlightRegistry<>("test");
+		UUID userId = UUID.randomUUID();
+		AtomicInteger nbLancements = new AtomicInteger();
+		List<CompletableFuture<Void>> rejoints = new ArrayList<>();
+		// le starter exécute le traitement dans le thread appelant (comme CALLER_RUNS) et utilise le registre pendant ce temps :
+		// la clé est déjà réservée, un autre appel pour la même clé la rejoint au lieu de lancer un second traitement
+		CompletableFuture<Void> lance = registry.joinOrStart(userId, () -> {
+			nbLancements.incrementAndGet();
+			assertTrue(registry.isPending(userId));
+			rejoints.add(registry.joinOrStart(userId, () -> {
+				nbLancements.incrementAndGet();
+				return CompletableFuture.completedFuture(null);
+			}));
+			return CompletableFuture.completedFuture(null);
+		});
+
+		assertEquals(1, nbLancements.get());
+		assertEquals(1, registry.getJoinCount());
+		assertTrue(lance.isDone());
+		assertTrue(rejoints.get(0).isDone());
+		assertEquals(0, registry.size());
+
+		// un starter qui échoue termine le traitement réservé et libère la clé
+		assertThrows(IllegalStateException.class, () -> registry.start(userId, enCours -> {
+			throw new IllegalStateException("saturated");
+		}));
+		assertFalse(registry.isPending(userId));
+		assertEquals(0, registry.size());
+		// un starter qui ne lance rien ne laisse rien dans le registre
+		assertEquals(null, registry.joinOrStart(userId, () -> null));
+		assertEquals(0, registry.size());
+	}
+
+	private static void awaitQuietly(CountDownLatch latch) {
+		try {
+			latch.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
 	}
 
 	@Test
@@ -124,6 +614,160 @@ public class TestTourGuideService {
 		tourGuideService.tracker.stopTracking();
 
 		assertEquals(5, providers.size());
+		rewardsService.shutdown();
+	}
+
+	@Test
+	public void tripDealCacheCoalescesAndRefreshes() throws Exception {
+		// TripPricer lent qui compte ses appels
+		AtomicInteger nbAppels = new AtomicInteger();
+		TripPricer tripPricer = new TripPricer() {
+			@Override
+			public List<Provider> getPrice(String apiKey, UUID attractionId, int adults, int children, int nightsStay, int rewardsPoints) {
+				nbAppels.incrementAndGet();
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return List.of(new Provider(attractionId, "provider" + nbAppels.get(), rewardsPoints));
+			}
+		};
+		TripDealCache cache = new TripDealCache(tripPricer, "test-server-api-key", Runnable::run,
+				new ExternalCallLimiter("tripPricer", ExecutionMode.FIXED_POOL_SIZE), TripDealCache.DEFAULT_MAX_SIZE);
+		UUID userId = UUID.randomUUID();
+		UserPreferences preferences = new UserPreferences();
+
+		// 10 demandes simultanées pour la même clé : un seul appel à TripPricer
+		List<CompletableFuture<List<Provider>>> futures = new ArrayList<>();
+		for (int i = 0; i < 10; i++) {
+			futures.add(CompletableFuture.supplyAsync(() -> cache.getTripDeals(userId, preferences, 100)));
+		}
+		for (CompletableFuture<List<Provider>> future : futures) {
+			assertEquals("provider1", future.get(5, TimeUnit.SECONDS).get(0).name);
+		}
+		assertEquals(1, nbAppels.get());
+		assertEquals(1, cache.getMissCount());
+
+		// d'autres points ou d'autres préférences changent la clé
+		cache.getTripDeals(userId, preferences, 200);
+		preferences.setNumberOfChildren(2);
+		cache.getTripDeals(userId, preferences, 200);
+		assertEquals(3, nbAppels.get());
+
+		// entrée à mettre à jour : l'ancienne valeur est servie, la mise à jour la remplace ensuite
+		cache.setTtl(1, 0, TimeUnit.MINUTES);
+		Thread.sleep(5);
+		assertEquals(200, cache.getTripDeals(userId, preferences, 200).get(0).price);
+		assertEquals(1, cache.getStaleHitCount());
+		assertEquals(4, nbAppels.get());
+		assertEquals("provider4", cache.getTripDeals(userId, preferences, 200).get(0).name);
+	}
+
+	@Test
+	public void tripDealCacheCompletesEntryAfterError() {
+		AtomicInteger nbAppels = new AtomicInteger();
+		TripPricer tripPricer = new TripPricer() {
+			@Override
+			public List<Provider> getPrice(String apiKey, UUID attractionId, int adults, int children, int nightsStay, int rewardsPoints) {
+				if (nbAppels.incrementAndGet() == 1) {
+					throw new AssertionError("TripPricer failure");
+				}
+				return List.of(new Provider(attractionId, "provider", rewardsPoints));
+			}
+		};
+		TourGuideExecutors executors = new TourGuideExecutors(ExecutionMode.FIXED_POOL);
+		TripDealCache cache = new TripDealCache(tripPricer, "test-server-api-key", executors);
+		UUID userId = UUID.randomUUID();
+		UserPreferences preferences = new UserPreferences();
+
+		assertThrows(AssertionError.class, () -> cache.getTripDeals(userId, preferences, 100));
+		// l'erreur n'est pas gardée en cache et l'entrée ne reste pas en attente : l'appel suivant ne bloque pas
+		assertEquals(1, assertTimeoutPreemptively(Duration.ofSeconds(5), () -> cache.getTripDeals(userId, preferences, 100)).size());
+		assertEquals(2, nbAppels.get());
+		executors.shutdown();
+	}
+
+	@Test
+	public void tripDealCacheRefreshesOutsideTheCallingThread() throws Exception {
+		// la première mise à jour en tâche de fond échoue avec une Error
+		List<String> threads = new CopyOnWriteArrayList<>();
+		TripPricer tripPricer = new TripPricer() {
+			@Override
+			public List<Provider> getPrice(String apiKey, UUID attractionId, int adults, int children, int nightsStay, int rewardsPoints) {
+				threads.add(Thread.currentThread().getName());
+				if (threads.size() == 2) {
+					throw new AssertionError("TripPricer failure");
+				}
+				return List.of(new Provider(attractionId, "provider" + threads.size(), rewardsPoints));
+			}
+		};
+		TourGuideExecutors executors = new TourGuideExecutors(ExecutionMode.FIXED_POOL);
+		TripDealCache cache = new TripDealCache(tripPricer, "test-server-api-key", executors);
+		UUID userId = UUID.randomUUID();
+		UserPreferences preferences = new UserPreferences();
+		cache.getTripDeals(userId, preferences, 100);
+
+		// entrée à mettre à jour : l'appelant reçoit l'ancienne valeur, la mise à jour se fait dans le bulkhead des offres
+		cache.setTtl(1, 0, TimeUnit.MINUTES);
+		Thread.sleep(5);
+		// l'échec de la mise à jour ne l'empêche pas d'être relancée par une demande suivante
+		long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+		while (threads.size() < 3 && System.currentTimeMillis() < deadline) {
+			assertEquals("provider1", cache.getTripDeals(userId, preferences, 100).get(0).name);
+			Thread.sleep(10);
+		}
+		String refreshed = cache.getTripDeals(userId, preferences, 100).get(0).name;
+		while ("provider1".equals(refreshed) && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+			refreshed = cache.getTripDeals(userId, preferences, 100).get(0).name;
+		}
+		assertEquals("provider3", refreshed);
+		assertEquals(Thread.currentThread().getName(), threads.get(0));
+		assertTrue(threads.get(1).startsWith("tripDealsRefresh-"));
+		assertTrue(threads.get(2).startsWith("tripDealsRefresh-"));
+		executors.shutdown();
+	}
+
+	@Test
+	public void concurrentLocationRefreshesShareOneCall() throws Exception {
+		// gpsUtil lent qui compte ses appels
+		AtomicInteger nbAppels = new AtomicInteger();
+		GpsUtil gpsUtil = new GpsUtil() {
+			@Override
+			public VisitedLocation getUserLocation(UUID userId) {
+				nbAppels.incrementAndGet();
+				try {
+					Thread.sleep(200);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return new VisitedLocation(userId, new Location(33.817595, -117.922008), new Date());
+			}
+		};
+		RewardsService rewardsService = new RewardsService(gpsUtil, new RewardCentral());
+		InternalTestHelper.setInternalUserNumber(0);
+		TourGuideService tourGuideService = new TourGuideService(gpsUtil, rewardsService);
+		tourGuideService.tracker.stopTracking();
+		User user = new User(UUID.randomUUID(), "jon", "000", "jon@tourGuide.com");
+		tourGuideService.addUser(user);
+
+		// 20 requêtes et le tracker demandent en même temps la position d'un user jamais suivi
+		List<CompletableFuture<VisitedLocation>> futures = new ArrayList<>();
+		for (int i = 0; i < 20; i++) {
+			futures.add(CompletableFuture.supplyAsync(() -> tourGuideService.trackUserLocationFuture(user)).thenCompose(f -> f));
+		}
+		tourGuideService.getUserLocationAsync(user);
+		for (CompletableFuture<VisitedLocation> future : futures) {
+			assertEquals(33.817595, future.get(10, TimeUnit.SECONDS).location.latitude);
+		}
+		// la position est à jour : les demandes suivantes ne relancent rien
+		tourGuideService.trackUserLocation(user);
+
+		assertEquals(1, nbAppels.get());
+		assertEquals(1, user.getVisitedLocations().size());
+		assertTrue(tourGuideService.getLocationRefreshJoinCount() >= 1);
+		rewardsService.shutdown();
 	}
 
 	@Test
@@ -142,5 +786,6 @@ public class TestTourGuideService {
 		tourGuideService.tracker.stopTracking();
 
 		assertTrue(attractionsAsJson.length()>0);
+		rewardsService.shutdown();
 	}
 }